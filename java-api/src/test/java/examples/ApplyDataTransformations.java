@@ -1,9 +1,14 @@
 package examples;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 import com.arosbio.chem.io.in.SDFile;
@@ -11,18 +16,28 @@ import com.arosbio.cheminf.ChemCPRegressor;
 import com.arosbio.cheminf.descriptors.ChemDescriptor;
 import com.arosbio.cheminf.descriptors.DescriptorFactory;
 import com.arosbio.commons.Stopwatch;
+import com.arosbio.data.DataRecord;
+import com.arosbio.data.Dataset;
+import com.arosbio.data.Dataset.SubSet;
+import com.arosbio.data.FeatureVector;
+import com.arosbio.data.FeatureVector.Feature;
+import com.arosbio.data.SparseFeature;
+import com.arosbio.data.SparseFeatureImpl;
+import com.arosbio.data.SparseVector;
 import com.arosbio.data.transform.feature_selection.DropMissingDataSelector;
 import com.arosbio.data.transform.feature_selection.L2_SVR_Selector;
-import com.arosbio.data.transform.scale.RobustScaler;
 import com.arosbio.ml.algorithms.svm.LinearSVR;
 import com.arosbio.ml.cp.acp.ACPRegressor;
 import com.arosbio.ml.cp.nonconf.regression.LogNormalizedNCM;
 import com.arosbio.ml.metrics.Metric;
 import com.arosbio.ml.sampling.RandomSampling;
-import com.arosbio.ml.testing.KFoldCV;
-import com.arosbio.ml.testing.TestRunner;
 
 import utils.Config;
+import utils.DescriptorCache;
+import utils.FusedPreprocessor;
+import utils.ParallelCrossValidation;
+import utils.ParallelDescriptorLoader;
+import utils.QuantileSketch;
 
 public class ApplyDataTransformations {
 
@@ -32,8 +47,9 @@ public class ApplyDataTransformations {
 	static String property = Config.getProperty("regression.endpoint");
 
 	/*
-	 * Note: this tests (for this particular data set) takes roughly 13-15 minutes to run
-	 * as it requires computing CDK descriptors that are time-consuming to compute. Normally
+	 * Note: this tests (for this particular data set) takes roughly 13-15 minutes to run (on a single core)
+	 * as it requires computing CDK descriptors that are time-consuming to compute. The descriptors are 
+	 * computed using the ParallelDescriptorLoader, so that part scales with the number of cores. Normally
 	 * the default descriptor (Signatures) give good performance but they typically do not 
 	 * require data transformations so we use physicochemical descriptors that do need standardization.
 	 */
@@ -61,30 +77,48 @@ public class ApplyDataTransformations {
 		// Set the new descriptors - overwriting the default SignaturesDescriptor
 		chemPredictor.getDataset().setDescriptors(cdkDescriptorsNo3D);
 
-		// Load data
-		chemPredictor.addRecords(new SDFile(dataFile).getIterator(), 
+		// Load data - computing the descriptors on several threads. Computed descriptors are 
+		// saved in a cache on disk, so re-running this test skips most of the descriptor calculations
+		DescriptorCache cache = new DescriptorCache(Config.getFile("descriptor.cache.dir", null).toPath());
+		new ParallelDescriptorLoader().withCache(cache).addRecords(chemPredictor.getDataset(), 
+				new SDFile(dataFile).getIterator(), 
 				property);
+		System.out.println("Descriptor cache: " + cache);
 
 		System.out.println("Total number of features: " + chemPredictor.getDataset().getNumAttributes());
 
-		// Some of them has issues - so check for features with missing values
-		chemPredictor.getDataset().apply(new DropMissingDataSelector());
+		// Some of them has issues - so check for features with missing values. Evaluate a copy of the data, 
+		// so that the initial results are computed on data that is neither scaled nor feature-selected
+		Dataset unscaled = chemPredictor.getDataset().clone();
+		unscaled.apply(new DropMissingDataSelector());
 
-		System.out.println("Num features after initial missing-data-filtration: " + chemPredictor.getDataset().getNumAttributes());
+		System.out.println("Num features after initial missing-data-filtration: " + unscaled.getNumAttributes());
 
 		// Evaluate this data set - note: not scaled or performed any feature-selection
-		TestRunner tester = new TestRunner.Builder(new KFoldCV()).build();
+		// The evaluation could be performed using the TestRunner, where folds are evaluated one after another:
+		// new TestRunner.Builder(new KFoldCV()).build().evaluate(unscaled,chemPredictor.getPredictor());
+		// Here we instead evaluate the 10 folds concurrently (using the same folds for both evaluations)
+		ParallelCrossValidation tester = new ParallelCrossValidation(10, 42, Runtime.getRuntime().availableProcessors());
 		Stopwatch sw = new Stopwatch();
 		sw.start();
-		List<Metric> metrics = tester.evaluate(chemPredictor.getDataset(),chemPredictor.getPredictor());
+		List<Metric> metrics = tester.evaluate(unscaled,chemPredictor.getPredictor());
 		sw.stop();
 		System.out.println("\nInitial results using 10-fold CV "+sw+" :");
 		for (Metric m : metrics) {
 			System.out.println(m);
 		}
 
-		// Perform robust scaling of features and then feature-selection
-		chemPredictor.getDataset().apply(new RobustScaler(), new L2_SVR_Selector());
+		// Drop features with missing values, perform robust scaling of the remaining features and then feature-selection.
+		// This could be done with chemPredictor.getDataset().apply(new DropMissingDataSelector(), new RobustScaler(), new L2_SVR_Selector());
+		// which makes one pass over the data for each transformer. The FusedPreprocessor (see utils package) instead 
+		// gathers the statistics for the first two in a single parallel pass and creates the transformed records in 
+		// a single copy. The quantiles are approximated using quantile sketches, so the memory used does not grow 
+		// with the number of records. Like all transformers it is saved in the dataset and applied to new molecules
+		FusedPreprocessor preprocessor = new FusedPreprocessor.Builder()
+				.dropMissingFeatures()
+				.robustScaling()
+				.build();
+		chemPredictor.getDataset().apply(preprocessor, new L2_SVR_Selector());
 
 		System.out.println("\nNum features after feature-selection: " + chemPredictor.getDataset().getNumAttributes());
 
@@ -97,4 +131,109 @@ public class ApplyDataTransformations {
 		}
 
 	}
+
+	/*
+	 * The FusedPreprocessor approximates the quantiles needed for robust scaling using quantile sketches (see utils package).
+	 * A sketch keeps a bounded number of values, independent of the number of values added, and sketches of separate 
+	 * partitions of the data can be merged. The quantiles are approximate, within a given normalized rank error.
+	 */
+	@Test
+	public void approximateQuantiles() throws IOException {
+		// Add values to a few sketches (e.g. one per thread) and merge them
+		double rankError = 0.01;
+		int numValues = 200_000;
+		Random rng = new Random(42);
+		double[] values = new double[numValues];
+		QuantileSketch[] partitions = new QuantileSketch[4];
+		for (int p = 0; p < partitions.length; p++)
+			partitions[p] = QuantileSketch.withRankError(rankError);
+		for (int i = 0; i < numValues; i++) {
+			values[i] = Math.exp(rng.nextGaussian());
+			partitions[i % partitions.length].update(values[i]);
+		}
+		QuantileSketch sketch = partitions[0];
+		for (int p = 1; p < partitions.length; p++)
+			sketch.merge(partitions[p]);
+		System.out.printf("%s, normalized rank error: %.4f%n", sketch, sketch.getNormalizedRankError());
+
+		// The rank of each approximate quantile is within the rank error of the requested one
+		Arrays.sort(values);
+		for (int i = 1; i < 100; i++) {
+			double q = i / 100d;
+			double approx = sketch.getQuantile(q);
+			int rank = Arrays.binarySearch(values, approx);
+			Assert.assertTrue("Approximate quantile not among the values", rank >= 0);
+			Assert.assertEquals("Rank of quantile " + q, q, (rank + 1d) / numValues, rankError);
+		}
+
+		// The FusedPreprocessor can be set to use either approximate (the default) or exact quantiles
+		SubSet data = null;
+		try (InputStream stream = Config.getURI("numerical.regression", null).toURL().openStream()){
+			data = SubSet.fromLIBSVMFormat(stream);
+		}
+		FusedPreprocessor approximate = new FusedPreprocessor.Builder()
+				.robustScaling()
+				.approximateQuantiles(rankError)
+				.build();
+		FusedPreprocessor exact = new FusedPreprocessor.Builder()
+				.robustScaling()
+				.exactQuantiles()
+				.build();
+		SubSet approximated = approximate.fitAndTransform(data);
+		exact.fitAndTransform(data);
+		Assert.assertArrayEquals(exact.getKeptFeatures(), approximate.getKeptFeatures());
+		Assert.assertEquals(data.size(), approximated.size());
+		System.out.println("First record scaled using approximate quantiles: " + approximated.get(0).getFeatures());
+
+		// On larger data (where the sketches are compacted) the scaled values are close to the ones using exact 
+		// quantiles: the approximate median and quartiles are within the rank error of the exact ones, which bounds 
+		// the difference of the center and scale of each feature
+		int numRecords = 50_000, numFeatures = 3;
+		double[][] columns = new double[numFeatures][numRecords];
+		SubSet large = new SubSet();
+		for (int i = 0; i < numRecords; i++) {
+			columns[0][i] = Math.exp(rng.nextGaussian());
+			columns[1][i] = rng.nextDouble() < 0.3 ? 0 : rng.nextGaussian() * 10; // implicit zeros
+			columns[2][i] = rng.nextDouble();
+			List<SparseFeature> features = new ArrayList<>();
+			for (int j = 0; j < numFeatures; j++) {
+				if (columns[j][i] != 0)
+					features.add(new SparseFeatureImpl(j, columns[j][i]));
+			}
+			large.add(new DataRecord(0d, new SparseVector(features)));
+		}
+		SubSet largeApproximated = approximate.clone().fitAndTransform(large);
+		SubSet largeExact = exact.clone().fitAndTransform(large);
+
+		double eps = QuantileSketch.withRankError(rankError).getNormalizedRankError();
+		for (int j = 0; j < numFeatures; j++) {
+			double[] sorted = columns[j].clone();
+			Arrays.sort(sorted);
+			double centerLow = quantile(sorted, 0.5 - eps), centerHigh = quantile(sorted, 0.5 + eps);
+			double scaleLow = quantile(sorted, 0.75 - eps) - quantile(sorted, 0.25 + eps);
+			double scaleHigh = quantile(sorted, 0.75 + eps) - quantile(sorted, 0.25 - eps);
+			double centerDiff = centerHigh - centerLow, scaleDiff = scaleHigh - scaleLow;
+			for (int i = 0; i < numRecords; i++) {
+				double x = columns[j][i];
+				// |(x-c')/s' - (x-c)/s| <= |c-c'|/s' + |x-c||s-s'|/(s s')
+				double bound = (centerDiff + (Math.abs(x - centerLow) + centerDiff) * scaleDiff / scaleLow) / scaleLow;
+				Assert.assertEquals("Feature " + j + " of record " + i, 
+						valueOf(largeExact.get(i).getFeatures(), j), valueOf(largeApproximated.get(i).getFeatures(), j), bound + 1e-12);
+			}
+		}
+	}
+
+	/** The (nearest rank) quantile of sorted values */
+	private static double quantile(double[] sorted, double q) {
+		int rank = (int) Math.ceil(Math.max(0, Math.min(1, q)) * sorted.length) - 1;
+		return sorted[Math.max(0, rank)];
+	}
+
+	private static double valueOf(FeatureVector features, int index) {
+		for (Feature f : features) {
+			if (f.getIndex() == index)
+				return f.getValue();
+		}
+		return 0;
+	}
 }
@@ -0,0 +1,200 @@
+package examples;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.smiles.SmilesParser;
+
+import com.arosbio.chem.io.in.SDFile;
+import com.arosbio.cheminf.ChemCPClassifier;
+import com.arosbio.cheminf.io.ModelSerializer;
+import com.arosbio.commons.Stopwatch;
+import com.arosbio.data.NamedLabels;
+import com.arosbio.ml.algorithms.svm.LinearSVC;
+import com.arosbio.ml.cp.acp.ACPClassifier;
+import com.arosbio.ml.cp.nonconf.classification.NegativeDistanceToHyperplaneNCM;
+import com.arosbio.ml.sampling.RandomSampling;
+
+import utils.BatchPredictor;
+import utils.BatchPredictor.Result;
+import utils.Config;
+import utils.LazyModel;
+import utils.PredictionCache;
+import utils.PredictionServer;
+
+public class BatchPrediction {
+
+	/*
+	 * Predicting a large number of molecules, e.g. for virtual screening, is done most efficiently by
+	 * computing descriptors and predictions on several threads. The BatchPredictor (see utils package)
+	 * reads molecules from an iterator (e.g. a SDF or CSV file), predicts them in batches on a pool
+	 * of threads and streams the results in the same order as the input - including failed molecules.
+	 */
+	@Test
+	public void batchPredictClassification() throws Exception {
+
+		File tmpModel = trainAndSaveModel();
+
+		// Each worker thread loads its own copy of the model, as the descriptor calculation
+		// is not guaranteed to be thread-safe. For a regression model use e.g.
+		// mol -> regressor.predict(mol, confidence), and for a Venn-ABERS model mol -> vap.predictProbabilities(mol).
+		// The predict function can also render an image of each molecule (see GeneratePredictionImages), the number
+		// of images rendered at the same time is then bounded by the number of threads.
+		// The threads and their models are kept until the BatchPredictor is closed, so it can be used for any number of files
+		try (BatchPredictor<Map<String,Double>> batchPredictor = new BatchPredictor<>(() -> {
+				ChemCPClassifier p = (ChemCPClassifier) ModelSerializer.loadChemPredictor(tmpModel.toURI(), null);
+				return mol -> p.predict(mol);
+			})){
+
+			// Here we simply predict the training file again, but would normally be a (large) compound library
+			URI dataFile = Config.getURI("classification.dataset", null);
+			for (int run = 0; run < 2; run++) {
+				// The second run does not load the models again
+				Stopwatch sw = new Stopwatch();
+				sw.start();
+				int numPredicted = 0;
+				try (BatchPredictor<Map<String,Double>>.ResultIterator results = batchPredictor.predict(new SDFile(dataFile).getIterator())){
+					while (results.hasNext()) {
+						Result<Map<String,Double>> r = results.next();
+						// Results would typically be written to file, here only print the first few
+						if (run == 0 && r.getIndex() < 5)
+							System.out.println(r);
+						if (!r.isFailed())
+							numPredicted++;
+					}
+					sw.stop();
+					System.out.printf("Predicted %d molecules (%d failed) in %s using %d threads%n",
+							numPredicted, results.getNumFailed(), sw, batchPredictor.getNumThreads());
+				}
+			}
+		}
+	}
+
+	/*
+	 * When the same molecules are predicted over and over again (e.g. in a prediction service), the predictions
+	 * can be cached using the PredictionCache (see utils package), keyed by canonical SMILES and the model identity.
+	 */
+	@Test
+	public void cachedPrediction() throws Exception {
+		File tmpModel = trainAndSaveModel();
+		// Loading a large model takes time, using the LazyModel (see utils package) the model is loaded in 
+		// the background while the service does other start up work, and is waited for on first use
+		LazyModel<ChemCPClassifier> model = new LazyModel<>(
+				() -> (ChemCPClassifier) ModelSerializer.loadChemPredictor(tmpModel.toURI(), null)).preload();
+
+		// Start up work done while the model is loading, here reading the molecules to predict 
+		Stopwatch sw = new Stopwatch();
+		sw.start();
+		List<IAtomContainer> molecules = new ArrayList<>();
+		Iterator<IAtomContainer> iterator = new SDFile(Config.getURI("classification.dataset", null)).getIterator();
+		while (iterator.hasNext())
+			molecules.add(iterator.next());
+		IAtomContainer testMolecule = new SmilesParser(SilentChemObjectBuilder.getInstance()).parseSmiles(Config.DEFAULT_SMILES);
+		sw.stop();
+		System.out.printf("Read %d molecules in %s while loading the model%n", molecules.size(), sw);
+
+		// The model identifier should change whenever the model changes, which invalidates the cache
+		PredictionCache<Map<String,Double>> cache = new PredictionCache<>(tmpModel.getName() + ":" + tmpModel.lastModified(), 1000);
+		ChemCPClassifier predictor = model.get();
+		System.out.println(model);
+		for (IAtomContainer mol : molecules) {
+			cache.predict(mol, m -> predictor.predict(m));
+		}
+		for (int i = 0; i < 10; i++) {
+			cache.predict(testMolecule, mol -> predictor.predict(mol));
+		}
+		System.out.println(cache);
+
+		// The cache can also be shared by the threads of a BatchPredictor, by wrapping the predictor of each thread
+		try (BatchPredictor<Map<String,Double>> batchPredictor = new BatchPredictor<>(() -> {
+					ChemCPClassifier p = (ChemCPClassifier) ModelSerializer.loadChemPredictor(tmpModel.toURI(), null);
+					return cache.wrap(mol -> p.predict(mol));
+				});
+				BatchPredictor<Map<String,Double>>.ResultIterator results = batchPredictor.predict(new SDFile(Config.getURI("classification.dataset", null)).getIterator())){
+			while (results.hasNext())
+				results.next();
+		}
+		System.out.printf("%s, hit rate: %.3f%n", cache, cache.getHitRate());
+	}
+
+	/*
+	 * For serving predictions continuously, the PredictionServer (see utils package) keeps the model loaded and
+	 * accepts SMILES over a local HTTP endpoint. Molecules of concurrent requests are predicted together in small 
+	 * batches, and requests are rejected (status 503) when the server is overloaded.
+	 */
+	@Test
+	public void predictionServer() throws Exception {
+		File tmpModel = trainAndSaveModel();
+
+		try (PredictionServer<Map<String,Double>> server = new PredictionServer<Map<String,Double>>(() -> {
+				ChemCPClassifier p = (ChemCPClassifier) ModelSerializer.loadChemPredictor(tmpModel.toURI(), null);
+				return mol -> p.predict(mol);
+			}, 0).start()){
+
+			// Clients POST one or more SMILES (one per line) to /predict, here from a few concurrent clients
+			URL predictURL = new URL("http://localhost:" + server.getPort() + "/predict");
+			ExecutorService clients = Executors.newFixedThreadPool(4);
+			try {
+				List<Future<String>> responses = new ArrayList<>();
+				for (int i = 0; i < 20; i++) {
+					responses.add(clients.submit(() -> post(predictURL, Config.DEFAULT_SMILES + "\nCCCO\n")));
+				}
+				for (Future<String> r : responses)
+					r.get();
+				System.out.print(responses.get(0).get());
+			} finally {
+				clients.shutdown();
+			}
+
+			// Statistics are also available at the /stats endpoint
+			System.out.println(server.getStats());
+		}
+	}
+
+	private static String post(URL url, String body) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		conn.setRequestMethod("POST");
+		conn.setDoOutput(true);
+		try (OutputStream os = conn.getOutputStream()){
+			os.write(body.getBytes(StandardCharsets.UTF_8));
+		}
+		try (InputStream is = conn.getInputStream()){
+			return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Train a predictor and save it, as in StandardWorkflows
+	 */
+	private static File trainAndSaveModel() throws Exception {
+		ChemCPClassifier predictor = new ChemCPClassifier(
+				new ACPClassifier(new NegativeDistanceToHyperplaneNCM(new LinearSVC()),
+						new RandomSampling(Config.getInt("modeling.sampling.num.models", 10), Config.getDouble("modeling.sampling.calib.ratio", 0.2))));
+		predictor.addRecords(new SDFile(Config.getURI("classification.dataset", null)).getIterator(),
+				Config.getProperty("classification.endpoint"),
+				new NamedLabels(Config.getProperty("classification.labels").split("[\\s,]")));
+		predictor.train();
+
+		File tmpModel = File.createTempFile("classification-model", ".jar");
+		tmpModel.deleteOnExit();
+		ModelSerializer.saveModel(predictor, tmpModel, null);
+		return tmpModel;
+	}
+
+}
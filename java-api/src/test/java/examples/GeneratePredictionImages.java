@@ -19,6 +19,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.iterator.IteratingSDFReader;
 import org.openscience.cdk.silent.SilentChemObjectBuilder;
 import org.openscience.cdk.smiles.SmilesParser;
 
@@ -37,6 +38,7 @@ import com.arosbio.chem.io.out.image.layout.CustomLayout.Margin;
 import com.arosbio.chem.io.out.image.layout.Position.Vertical;
 import com.arosbio.cheminf.ChemCPClassifier;
 import com.arosbio.cheminf.SignificantSignature;
+import com.arosbio.cheminf.io.ModelSerializer;
 import com.arosbio.color.gradient.ColorGradient;
 import com.arosbio.color.gradient.GradientFactory;
 import com.arosbio.data.NamedLabels;
@@ -46,6 +48,10 @@ import com.arosbio.ml.cp.acp.ACPClassifier;
 import com.arosbio.ml.cp.nonconf.classification.NegativeDistanceToHyperplaneNCM;
 import com.arosbio.ml.sampling.RandomSampling;
 
+import utils.BatchPredictor;
+import utils.BatchPredictor.Result;
+import utils.ChemFileScanner;
+import utils.ChemFileScanner.RecordIndex;
 import utils.Config;
 
 public class GeneratePredictionImages {
@@ -54,6 +60,7 @@ public class GeneratePredictionImages {
 	static File imageDir = null;
 	static String label;
 	static SignificantSignature ss;
+	static ChemCPClassifier chemPredictor;
 
 	@BeforeClass
 	public static void generateDepictionInfo() throws IOException, IllegalStateException, NullPointerException, CDKException {
@@ -76,7 +83,7 @@ public class GeneratePredictionImages {
 					Config.getDouble("modeling.sampling.calib.ratio", 0.2))); // proportion used for calibration in each ICP
 
 		// Wrap the predictor in Signatures-wrapper
-		ChemCPClassifier chemPredictor = new ChemCPClassifier(predictor);
+		chemPredictor = new ChemCPClassifier(predictor);
 
 		// Load data
 		chemPredictor.addRecords(new SDFile(Config.getURI("classification.dataset", null)).getIterator(), 
@@ -87,8 +94,14 @@ public class GeneratePredictionImages {
 		chemPredictor.train();
 
 		// When we're generating images, we need to compute ranges for the dataset 
-		// (e.g. by computing the training file again on the trained models)
-		chemPredictor.computePercentiles(new SDFile(Config.getURI("classification.dataset", null)).getIterator());
+		// (e.g. by computing the training file again on the trained models). The percentiles are estimates
+		// of the distribution, so for large files it is enough to predict a random sample of the molecules - 
+		// the ChemFileScanner draws the sample and reads only those records from the file
+		RecordIndex index = ChemFileScanner.scanSDF(Config.getURI("classification.dataset", null));
+		int[] sample = index.sample(Config.getInt("percentiles.sample.size", 1000), 42);
+		try (IteratingSDFReader reader = new IteratingSDFReader(index.openRecords(sample), SilentChemObjectBuilder.getInstance());){
+			chemPredictor.computePercentiles(reader);
+		}
 
 		// Predict the testMolecule 
 		label = chemPredictor.getDataset().getTextualLabels().getLabels().values().iterator().next();
@@ -235,5 +248,37 @@ public class GeneratePredictionImages {
 		return image;
 	}
 
+	/*
+	 * Computing significant signatures is slower than a plain prediction. When generating e.g. reports for a 
+	 * large number of molecules they can be computed on several threads using the BatchPredictor (see utils package),
+	 * where each thread uses its own copy of the model (loaded from file). The results are returned in the same
+	 * order as the input, so the molecules can be depicted as the results are streamed.
+	 */
+	@Test
+	public void batchSignificantSignatures() throws Exception {
+		File tmpModel = File.createTempFile("classification-model", ".jar");
+		tmpModel.deleteOnExit();
+		ModelSerializer.saveModel(chemPredictor, tmpModel, null);
+
+		int numDepicted = 0;
+		try (BatchPredictor<SignificantSignature> batchPredictor = new BatchPredictor<>(() -> {
+					ChemCPClassifier p = (ChemCPClassifier) ModelSerializer.loadChemPredictor(tmpModel.toURI(), null);
+					return mol -> p.predictSignificantSignature(mol, label);
+				});
+				BatchPredictor<SignificantSignature>.ResultIterator results = batchPredictor.predict(
+						new SDFile(Config.getURI("classification.dataset", null)).getIterator())){
+			while (results.hasNext()) {
+				Result<SignificantSignature> r = results.next();
+				if (r.isFailed())
+					continue;
+				// Only print a few of them, normally these would be depicted using e.g. the AtomContributionRenderer
+				if (numDepicted++ < 5)
+					System.out.printf("Molecule %d: significant signature %s, atoms: %s%n", 
+						r.getIndex(), r.getPrediction().getSignature(), r.getPrediction().getAtoms());
+			}
+			System.out.printf("Computed %d significant signatures (%d failed) using %d threads%n", 
+				numDepicted, results.getNumFailed(), batchPredictor.getNumThreads());
+		}
+	}
 
 }
@@ -6,7 +6,9 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.security.InvalidKeyException;
 
 import org.apache.commons.io.FileUtils;
@@ -14,6 +16,8 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import com.arosbio.commons.GlobalConfig;
+import com.arosbio.commons.Stopwatch;
+import com.arosbio.data.DataRecord;
 import com.arosbio.data.DataUtils;
 import com.arosbio.data.Dataset;
 import com.arosbio.data.DenseFloatVector;
@@ -22,7 +26,10 @@ import com.arosbio.data.Dataset.SubSet;
 import com.arosbio.data.transform.format.MakeDenseTransformer;
 import com.arosbio.encryption.EncryptionSpecification;
 
+import utils.CSRMatrix;
 import utils.Config;
+import utils.LIBSVMLoader;
+import utils.MappedCSRFile;
 
 public class ManipulatingNumericalDatasets {
 
@@ -122,6 +129,58 @@ public class ManipulatingNumericalDatasets {
 		
 	}
 
+	@Test
+	public void parallelLoading() throws IOException {
+		// Large LIBSVM files can be loaded faster by parsing chunks of the file on several threads 
+		// (the small example file here will not show any substantial speedup)
+		URI dataFile = Config.getURI("numerical.classification", null);
+
+		Stopwatch sw = new Stopwatch();
+		sw.start();
+		SubSet dataset = null;
+		try (InputStream stream = dataFile.toURL().openStream()){
+			dataset = SubSet.fromLIBSVMFormat(stream);
+		}
+		sw.stop();
+		System.out.println("Loaded using SubSet.fromLIBSVMFormat: " + sw);
+
+		// The LIBSVMLoader parses the data into primitive arrays (CSR format)
+		sw.start();
+		CSRMatrix matrix = new LIBSVMLoader().load(Paths.get(dataFile));
+		sw.stop();
+		System.out.println("Loaded using LIBSVMLoader: " + sw + ", " + matrix);
+
+		// Which can then be converted into a SubSet or Dataset
+		SubSet fromMatrix = matrix.toSubSet();
+		Assert.assertEquals(dataset.size(), fromMatrix.size());
+		for (int i = 0; i < dataset.size(); i++) {
+			Assert.assertEquals(dataset.get(i).getLabel(), fromMatrix.get(i).getLabel(), 0.000001);
+			Assert.assertEquals(dataset.get(i).getFeatures(), fromMatrix.get(i).getFeatures());
+		}
+	}
 
+	@Test
+	public void binaryFormat() throws IOException {
+		// Large (e.g. precomputed) datasets can be saved in a binary format that is memory mapped 
+		// when opened, so that loading takes the same time regardless of the size of the data
+		SubSet dataset = null;
+		try (InputStream stream = Config.getURI("numerical.classification", null).toURL().openStream()){
+			dataset = SubSet.fromLIBSVMFormat(stream);
+		}
+
+		File binaryFile = File.createTempFile("data", ".csr");
+		binaryFile.deleteOnExit();
+		// Any list of records can be saved, e.g. the records of a precomputed ChemDataset
+		MappedCSRFile.write(dataset, binaryFile.toPath());
+
+		try (MappedCSRFile mapped = MappedCSRFile.open(binaryFile.toPath())){
+			System.out.println("Opened binary file: " + mapped);
+			// Records are only created once accessed
+			DataRecord first = mapped.getRecord(0);
+			Assert.assertEquals(dataset.get(0).getLabel(), first.getLabel(), 0.000001);
+			// Or all of them can be converted to a SubSet
+			Assert.assertEquals(dataset.size(), mapped.toSubSet().size());
+		}
+	}
 
 }
@@ -1,6 +1,7 @@
 package examples;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -26,6 +27,7 @@ import com.arosbio.ml.testing.LOOCV;
 import com.arosbio.ml.testing.RandomSplit;
 
 import utils.Config;
+import utils.ParallelGridSearch;
 
 public class ParameterTuning {
 
@@ -90,4 +92,51 @@ public class ParameterTuning {
 		}
 	}
 
+	/*
+	 * The same grid search as above, but using the ParallelGridSearch (see utils package) that evaluates all
+	 * (parameter combination, fold) pairs concurrently, using the same folds for all combinations. 
+	 */
+	@Test
+	public void parallelRegression() throws IllegalArgumentException, IOException {
+		ACPRegressor predictor = new ACPRegressor(
+				new LogNormalizedNCM(new LinearSVR(),0.01), 
+				new RandomSampling(Config.getInt("modeling.sampling.num.models", 10), Config.getDouble("modeling.sampling.calib.ratio",0.2)));
+		ChemCPRegressor chemPredictor = new ChemCPRegressor(predictor, 1, 3);
+		chemPredictor.addRecords(new SDFile(Config.getURI("regression.dataset",null)).getIterator(), 
+				Config.getProperty("regression.endpoint"));
+
+		double confidence = Config.getDouble("modeling.conf",0.8);
+		ParallelGridSearch gs = new ParallelGridSearch.Builder()
+			.numFolds(Config.getInt("modeling.k",5))
+			.seed(42)
+			.evaluationMetric(new MedianPredictionIntervalWidth(confidence))
+			// Each combination is written as soon as all of its folds are done
+			.loggingWriter(new PrintWriter(System.out))
+			.build();
+
+		// Each (cost, fold) pair fits the LinearSVR from scratch. The liblinear models of CPSign cannot be 
+		// started from a previous solution, so the fits for neighbouring cost values cannot be warm started
+		Map<String,List<?>> paramGrid = new HashMap<>();
+		paramGrid.put("cost", Arrays.asList(1, 10, 100));
+		paramGrid.put("ncmBeta", Arrays.asList(0.0, 0.25, 0.5));
+
+		// As for the GridSearch, the best parameters are sorted with the best one first
+		ParallelGridSearch.SearchResult res = gs.search(chemPredictor.getDataset(), chemPredictor.getPredictor(), paramGrid);
+		for (ParallelGridSearch.Result r : res.getBestParameters()) {
+			System.out.println(r + " params: " + r.getParams());
+		}
+
+		// Successive halving first evaluates all combinations on a single fold, then keeps the best 1/3 of them 
+		// for evaluation on 3 times as many folds, etc. - only the most promising ones are evaluated on all folds
+		ParallelGridSearch halving = new ParallelGridSearch.Builder()
+			.numFolds(Config.getInt("modeling.k",5))
+			.seed(42)
+			.evaluationMetric(new MedianPredictionIntervalWidth(confidence))
+			.successiveHalving(3)
+			.build();
+		// The best parameters only include the combinations that were evaluated on all folds
+		res = halving.search(chemPredictor.getDataset(), chemPredictor.getPredictor(), paramGrid);
+		System.out.println("Best parameters using successive halving: " + res.getBestParameters().get(0).getParams());
+	}
+
 }
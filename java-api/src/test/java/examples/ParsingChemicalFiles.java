@@ -3,9 +3,17 @@ package examples;
 import java.io.FileReader;
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.csv.CSVFormat;
 import org.junit.Test;
+import org.openscience.cdk.io.iterator.IteratingSDFReader;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
 
 import com.arosbio.chem.io.in.CSVChemFileReader;
 import com.arosbio.chem.io.in.CSVFile;
@@ -14,7 +22,10 @@ import com.arosbio.chem.io.in.ChemFileIterator;
 import com.arosbio.chem.io.in.SDFile;
 import com.arosbio.commons.CollectionUtils;
 
+import utils.ChemFileScanner;
+import utils.ChemFileScanner.RecordIndex;
 import utils.Config;
+import utils.ParallelCSVChemReader;
 
 /*
  * Parsing of chemical data can be done using any custom code or CDK based readers. 
@@ -60,9 +71,67 @@ public class ParsingChemicalFiles {
 			int count = CollectionUtils.count(molIterator);
 			System.out.println("Number of molecules in CSV file (using CSVChemFileReader): " + count);
 		}
+
+		// For large files, the ParallelCSVChemReader reads the rows in one thread and parses
+		// the SMILES on several threads, still giving the molecules in the same order as in the file
+		try(FileReader reader = new FileReader(dataset.getPath());
+			ParallelCSVChemReader molIterator = new ParallelCSVChemReader(
+					CSVFormat.DEFAULT.builder().setDelimiter(';').build(), 
+					reader);){
+			
+			int count = CollectionUtils.count(molIterator);
+			System.out.println("Number of molecules in CSV file (using ParallelCSVChemReader): " + count 
+				+ ", failed records: " + molIterator.getRecordsSkipped());
+		}
 		
 	}
 	
+	@Test
+	public void scanRecordBoundaries() throws Exception {
+		// Parsing all molecules only to count them is wasteful. The ChemFileScanner only finds 
+		// the record boundaries, without parsing any chemistry, which is substantially faster
+		URI dataset = Config.getURI("classification.dataset", null);
+		RecordIndex index = ChemFileScanner.scanSDF(dataset);
+		System.out.println("Number of molecules in SDF file (using ChemFileScanner): " + index.size());
+
+		// The index can be used for random access of records
+		try (IteratingSDFReader reader = new IteratingSDFReader(index.openRecord(index.size() - 1), SilentChemObjectBuilder.getInstance());){
+			System.out.println("Last molecule in the file has " + reader.next().getAtomCount() + " atoms");
+		}
+
+		// Drawing a random sample of the records
+		int[] sample = index.sample(10, 42);
+		System.out.println("Random sample of records: " + Arrays.toString(sample));
+		// ..and parse only the sampled records, in a single pass over the file
+		try (IteratingSDFReader reader = new IteratingSDFReader(index.openRecords(sample), SilentChemObjectBuilder.getInstance());){
+			System.out.println("Number of molecules parsed from the sample: " + CollectionUtils.count(reader));
+		}
+
+		// Or split the file into shards that can be parsed in parallel
+		int numThreads = Runtime.getRuntime().availableProcessors();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<Integer>> counts = new ArrayList<>();
+			for (int[] shard : index.getShards(numThreads)) {
+				counts.add(pool.submit(() -> {
+					try (IteratingSDFReader reader = new IteratingSDFReader(index.openRecords(shard[0], shard[1]), SilentChemObjectBuilder.getInstance());){
+						return CollectionUtils.count(reader);
+					}
+				}));
+			}
+			int total = 0;
+			for (Future<Integer> c : counts)
+				total += c.get();
+			System.out.println("Number of molecules parsed in parallel: " + total);
+		} finally {
+			pool.shutdown();
+		}
+
+		// CSV files are scanned by finding the rows (taking quoted fields into account)
+		RecordIndex csvIndex = ChemFileScanner.scanCSV(Config.getURI("csv.dataset", null), true);
+		System.out.println("Number of records in CSV file (using ChemFileScanner): " + csvIndex.size());
+	}
+	
 	private static int countInFile(ChemFile file) throws IOException {
 		int num = 0;
 		
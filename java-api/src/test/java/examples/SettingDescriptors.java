@@ -22,13 +22,16 @@ import com.arosbio.ml.cp.nonconf.regression.LogNormalizedNCM;
 import com.arosbio.ml.sampling.RandomSampling;
 
 import utils.Config;
+import utils.DescriptorCache;
+import utils.ParallelDescriptorLoader;
 
 public class SettingDescriptors {
 
 	/*
 	 * Note: this tests (for this particular data set) takes roughly 8-10 minutes to run
 	 * as it requires CDK descriptors that are time consuming to compute. In real world scenarios,
-	 * put some effort into picking the appropriate descriptors 
+	 * put some effort into picking the appropriate descriptors. The descriptors are here computed 
+	 * using the ParallelDescriptorLoader, so the run time is reduced roughly by the number of cores
 	 */
 	@Test
 	public void descriptors() throws Exception {
@@ -58,9 +61,15 @@ public class SettingDescriptors {
 		 * and to scale features - and possibly add feature-selection 
 		 */
 
-		// Load data, train and save model
-		chemPredictor.addRecords(new SDFile(Config.getURI("regression.dataset", null)).getIterator(), 
+		// Load data, train and save model. CDK descriptors have a fixed length, so these can be 
+		// computed on several threads, instead of using chemPredictor.addRecords(..)
+		// and be cached on disk - so a second run will not need to compute them again
+		DescriptorCache cache = new DescriptorCache(Config.getFile("descriptor.cache.dir", null).toPath());
+		ParallelDescriptorLoader loader = new ParallelDescriptorLoader().withCache(cache);
+		loader.addRecords(chemPredictor.getDataset(), 
+				new SDFile(Config.getURI("regression.dataset", null)).getIterator(), 
 				Config.getProperty("regression.endpoint"));
+		System.out.println("Molecules that failed: " + loader.getFailedRecords());
 
 		// Train the aggregated ICPs
 		chemPredictor.train();
@@ -61,7 +61,9 @@ public class StandardWorkflows {
 		ACPClassifier acp = new ACPClassifier(ncm.clone(), new RandomSampling(10, .2));
 		// CCP - using a folded sampling strategy to yield cross-conformal predictors
 		ACPClassifier ccp = new ACPClassifier(ncm.clone(), new FoldedSampling(5));
-		// TCP 
+		// TCP - note that the TCP refits the NCM for every test object and every tentative label, 
+		// i.e. prediction time grows with the training set size and it is only practical for small datasets. 
+		// For larger datasets use an ICP, ACP or CCP (where all models are fitted once at training time)
 		TCPClassifier tcp = new TCPClassifier(ncm.clone());
 
 		// Instantiation can also be done directly using the constructors of the classes
@@ -1,11 +1,19 @@
 package examples;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 import com.arosbio.cheminf.io.ModelSerializer;
@@ -20,6 +28,7 @@ import com.arosbio.ml.algorithms.svm.SVR;
 import com.arosbio.ml.cp.CPRegressionPrediction;
 import com.arosbio.ml.cp.acp.ACPClassifier;
 import com.arosbio.ml.cp.acp.ACPRegressor;
+import com.arosbio.ml.cp.nonconf.calc.StandardPValue;
 import com.arosbio.ml.cp.nonconf.classification.InverseProbabilityNCM;
 import com.arosbio.ml.cp.nonconf.classification.NCMMondrianClassification;
 import com.arosbio.ml.cp.nonconf.classification.NegativeDistanceToHyperplaneNCM;
@@ -33,7 +42,13 @@ import com.arosbio.ml.sampling.RandomSampling;
 import com.arosbio.ml.vap.avap.AVAPClassifier;
 import com.arosbio.ml.vap.avap.CVAPPrediction;
 
+import utils.CompiledLinearACP;
+import utils.CompiledVennABERS;
 import utils.Config;
+import utils.DataSplits;
+import utils.DataSplits.Split;
+import utils.ParallelACPTrainer;
+import utils.ParallelACPTrainer.AggregatedClassifier;
 
 /*
  * A key thing to note for using non-chemical descriptor data is that the SVM hyper-parameters
@@ -124,6 +139,10 @@ public class StandardWorkflowsNonChem {
 		// Instantiate the underlying scoring model, here a SVR with RBF kernel
 		SVR rbfSVR = new EpsilonSVR();
 		// Pick the nonconformity measure to use
+		// Note: the NormalizedNCM fits two models (for the target and the error) and each ICP of an ACP 
+		// fits its own models, where each model computes (and caches) its own kernel values. For large datasets 
+		// training time is dominated by kernel evaluations, consider a linear model (LinearSVR) or training the 
+		// ICPs concurrently using the ParallelACPTrainer (see the utils package and parallelAggregatedTraining below)
 		NCMRegression ncm = new NormalizedNCM(rbfSVR);
 
 		// Only one Conformal regression class exists, generating 
@@ -151,7 +170,9 @@ public class StandardWorkflowsNonChem {
 		// Training is then performed using the dataset
 		icp.train(dataset);
 
-		// Regression requires one or more confidence values for the predictor
+		// Regression requires one or more confidence values for the predictor. When several confidences are 
+		// needed, pass all of them in a single call, e.g. icp.predict(features, Arrays.asList(0.7, 0.8, 0.9)), 
+		// so that the ICPs only compute the nonconformity score of the test record once
 		double confidence = Config.getDouble("modeling.conf", .8);
 		CPRegressionPrediction prediction = icp.predict(testRecord.getFeatures(), confidence);
 
@@ -165,6 +186,33 @@ public class StandardWorkflowsNonChem {
 		// Saving and loading the predictor is done in the same way as for the classifier above 
 	}
 
+	@Test
+	public void parallelAggregatedTraining() throws Exception {
+		// The ICPs of an aggregated predictor are independent of each other, and can thus
+		// be trained concurrently. Here we create the splits (i.e. the sampling strategy) up front
+		// so that the result is deterministic regardless of how many threads are used
+		Dataset dataset = null;
+		URI uri = Config.getURI("numerical.classification", null);
+		try (InputStream stream = uri.toURL().openStream()){
+			dataset = Dataset.fromLIBSVMFormat(stream);
+		}
+		DataRecord testRecord = dataset.getDataset().remove(0);
+
+		int numRecords = dataset.getDataset().size();
+		long seed = 42;
+		// Equivalent to a CCP using 'new FoldedSampling(5)'
+		List<Split> folds = DataSplits.folds(numRecords, 5, seed);
+		// Equivalent to an ACP using 'new RandomSampling(10, .2)'
+		List<Split> randomSplits = DataSplits.randomSplits(numRecords, 10, .2, seed);
+
+		ParallelACPTrainer trainer = new ParallelACPTrainer();
+		AggregatedClassifier ccp = trainer.trainClassifier(new NegativeDistanceToHyperplaneNCM(new LinearSVC()), dataset, folds);
+		AggregatedClassifier acp = trainer.trainClassifier(new NegativeDistanceToHyperplaneNCM(new LinearSVC()), dataset, randomSplits);
+
+		System.out.printf("CCP prediction for test-record of true class {%d}: %s%n",(int)testRecord.getLabel(), ccp.predict(testRecord));
+		System.out.printf("ACP prediction for test-record of true class {%d}: %s%n",(int)testRecord.getLabel(), acp.predict(testRecord));
+	}
+
 	@Test 
 	public void vennABERSclassifier() throws Exception {
 		// Venn-ABERS predictors work slightly differently - by calibrating the predictions of 
@@ -206,4 +254,169 @@ public class StandardWorkflowsNonChem {
 		// Saving and loading the predictor is done in the same way as for the classifier above
 	}
 
+	@Test
+	public void compiledVennABERSclassifier() throws Exception {
+		// The CompiledVennABERS (see the utils package) performs the isotonic regressions of all folds 
+		// at training time, so that predictions only require a lookup in precomputed tables
+		CompiledVennABERS cvap = new CompiledVennABERS(new LinearSVC(), 10, 42);
+
+		Dataset dataset = null;
+		URI uri = Config.getURI("numerical.classification", null);
+		try (InputStream stream = uri.toURL().openStream()){
+			dataset = Dataset.fromLIBSVMFormat(stream);
+		}
+		DataRecord testRecord = dataset.getDataset().remove(0);
+
+		cvap.train(dataset.getDataset());
+
+		CompiledVennABERS.Prediction prediction = cvap.predict(testRecord.getFeatures());
+		System.out.printf("probabilities for test-record of true class {%d}: %s%n",
+			(int)testRecord.getLabel(), prediction.getProbabilities());
+		System.out.printf(Locale.ENGLISH,"mean width: %.4f%nmedian width: %.4f%n", 
+			prediction.getMeanP0P1Width(), prediction.getMedianP0P1Width());
+
+		// The trained predictor, including the precomputed tables, can be saved and loaded again
+		File tmpModel = File.createTempFile("compiled-vap", ".bin");
+		tmpModel.deleteOnExit();
+		try (OutputStream os = new FileOutputStream(tmpModel)){
+			cvap.write(os);
+		}
+		CompiledVennABERS loaded = null;
+		try (InputStream is = new FileInputStream(tmpModel)){
+			loaded = CompiledVennABERS.read(is, new LinearSVC());
+		}
+		Assert.assertEquals(prediction.getProbabilities(), loaded.predictProbabilities(testRecord.getFeatures()));
+	}
+
+	@Test
+	public void compiledVennABERSequalsIsotonicRegression() throws Exception {
+		// The precomputed p0/p1 values are the same as when performing the isotonic regression 
+		// with the test score included, for test scores equal to, between, below and above the 
+		// calibration scores (here integer scores, so that there are many ties)
+		Random rng = new Random(42);
+		for (int iter = 0; iter < 500; iter++) {
+			int n = 1 + rng.nextInt(50);
+			int numScores = 1 + rng.nextInt(n + 1);
+			double[] scores = new double[n];
+			boolean[] positive = new boolean[n];
+			for (int i = 0; i < n; i++) {
+				scores[i] = rng.nextInt(numScores);
+				positive[i] = rng.nextDouble() < (1.0 + scores[i]) / (numScores + 1);
+			}
+			double[] testScores = new double[2 * numScores + 3];
+			for (int i = 0; i < testScores.length; i++)
+				testScores[i] = -1 + i / 2.0;
+
+			double[][] p0p1 = CompiledVennABERS.computeP0P1(scores, positive, testScores);
+			for (int i = 0; i < testScores.length; i++) {
+				Assert.assertEquals(isotonicFit(scores, positive, testScores[i], false), p0p1[i][0], 1e-12);
+				Assert.assertEquals(isotonicFit(scores, positive, testScores[i], true), p0p1[i][1], 1e-12);
+			}
+		}
+	}
+
+	/**
+	 * The isotonic regression (pool adjacent violators) of the calibration points and the test point, 
+	 * evaluated at the test score. Points with the same score are pooled
+	 */
+	private static double isotonicFit(double[] scores, boolean[] positive, double testScore, boolean testLabel) {
+		TreeMap<Double,double[]> points = new TreeMap<>();
+		for (int i = 0; i < scores.length; i++) {
+			double[] sumAndWeight = points.computeIfAbsent(scores[i], s -> new double[2]);
+			sumAndWeight[0] += positive[i] ? 1 : 0;
+			sumAndWeight[1]++;
+		}
+		double[] test = points.computeIfAbsent(testScore, s -> new double[2]);
+		test[0] += testLabel ? 1 : 0;
+		test[1]++;
+
+		List<double[]> blocks = new ArrayList<>(); // {sum, weight, highest score}
+		for (Map.Entry<Double,double[]> p : points.entrySet()) {
+			double[] block = {p.getValue()[0], p.getValue()[1], p.getKey()};
+			while (!blocks.isEmpty()) {
+				double[] last = blocks.get(blocks.size() - 1);
+				if (last[0] / last[1] < block[0] / block[1])
+					break;
+				block[0] += last[0];
+				block[1] += last[1];
+				blocks.remove(blocks.size() - 1);
+			}
+			blocks.add(block);
+		}
+		for (double[] block : blocks) {
+			if (testScore <= block[2])
+				return block[0] / block[1];
+		}
+		throw new IllegalStateException("Test score not found in the isotonic fit");
+	}
+
+	@Test
+	public void compiledLinearACPclassifier() throws Exception {
+		// When all aggregated models are linear, the CompiledLinearACP (see the utils package) extracts 
+		// the weights of the models into a single matrix, so that a prediction is one pass over the 
+		// features of the test object - instead of one prediction per model object. Single precision 
+		// weights halves the memory of the compiled predictor
+		CompiledLinearACP acp = new CompiledLinearACP(new LinearSVC(), 
+				Config.getInt("modeling.sampling.num.models", 10), 
+				Config.getDouble("modeling.sampling.calibration.ratio", 0.2), 42)
+			.singlePrecision(true);
+
+		Dataset dataset = null;
+		URI uri = Config.getURI("numerical.classification", null);
+		try (InputStream stream = uri.toURL().openStream()){
+			dataset = Dataset.fromLIBSVMFormat(stream);
+		}
+		DataRecord testRecord = dataset.getDataset().remove(0);
+
+		acp.train(dataset.getDataset());
+
+		Map<Integer,Double> pvals = acp.predict(testRecord.getFeatures());
+		System.out.printf("p-values for test-record of true class {%d}: %s%n", (int)testRecord.getLabel(), pvals);
+
+		// The compiled predictor only contains primitive arrays, and is saved without the model objects
+		File tmpModel = File.createTempFile("compiled-acp", ".bin");
+		tmpModel.deleteOnExit();
+		try (OutputStream os = new FileOutputStream(tmpModel)){
+			acp.write(os);
+		}
+		CompiledLinearACP loaded = null;
+		try (InputStream is = new FileInputStream(tmpModel)){
+			loaded = CompiledLinearACP.read(is);
+		}
+		Assert.assertEquals(pvals, loaded.predict(testRecord.getFeatures()));
+	}
+
+	@Test
+	public void compiledLinearACPequalsObjectModel() throws Exception {
+		// The compiled predictor gives the same p-values as ACPClassifiers using the same splits, 
+		// nonconformity measure and (non-smoothed) p-value calculator, aggregated by the median
+		int numModels = 5;
+		double calibrationRatio = 0.2;
+		long seed = 42;
+
+		Dataset dataset = null;
+		URI uri = Config.getURI("numerical.classification", null);
+		try (InputStream stream = uri.toURL().openStream()){
+			dataset = Dataset.fromLIBSVMFormat(stream);
+		}
+		List<DataRecord> testRecords = new ArrayList<>();
+		for (int i = 0; i < 20; i++)
+			testRecords.add(dataset.getDataset().remove(0));
+
+		CompiledLinearACP compiled = new CompiledLinearACP(new LinearSVC(), numModels, calibrationRatio, seed);
+		compiled.train(dataset.getDataset());
+
+		List<Split> splits = DataSplits.randomSplits(dataset.getDataset().size(), numModels, calibrationRatio, seed);
+		AggregatedClassifier objectModel = new ParallelACPTrainer().trainClassifier(
+				new NegativeDistanceToHyperplaneNCM(new LinearSVC()), new StandardPValue(), dataset, splits);
+
+		for (DataRecord r : testRecords) {
+			Map<Integer,Double> expected = objectModel.predict(r);
+			Map<Integer,Double> pvals = compiled.predict(r.getFeatures());
+			Assert.assertEquals(expected.keySet(), pvals.keySet());
+			for (Map.Entry<Integer,Double> kv : expected.entrySet())
+				Assert.assertEquals(kv.getValue(), pvals.get(kv.getKey()), 1e-6);
+		}
+	}
+
 }
@@ -0,0 +1,280 @@
+package utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/*
+ * Predicts molecules in batches using a pool of worker threads, e.g. for virtual screening of large
+ * compound libraries. The molecules are read from the input iterator by the consuming thread and handed
+ * to the workers in batches, where descriptors are computed and the predictions made. Results are
+ * streamed in the same order as the input, with the identifier of each molecule, and the number of
+ * batches in flight is bounded so that memory use does not grow with the size of the input.
+ *
+ * Each worker thread uses its own predictor, created using the given factory (e.g. by loading the same
+ * model file), as descriptor calculation is not guaranteed to be thread-safe. The worker threads and their
+ * predictors belong to the BatchPredictor, so they are created once and reused by all calls to predict -
+ * the BatchPredictor should be closed when no longer used. Molecules that fail are returned as failed
+ * results instead of stopping the prediction.
+ */
+public class BatchPredictor<R> implements AutoCloseable {
+
+	public static final int DEFAULT_BATCH_SIZE = 50;
+
+	/**
+	 * Makes a prediction for a single molecule, e.g. {@code mol -> predictor.predict(mol)}
+	 */
+	public interface PredictFunction<R> {
+		R predict(IAtomContainer molecule) throws Exception;
+	}
+
+	/**
+	 * Creates the predict function of a worker thread, called once per thread
+	 */
+	public interface PredictorFactory<R> {
+		PredictFunction<R> create() throws Exception;
+	}
+
+	public static class Result<R> {
+		private final int index;
+		private final String id;
+		private final R prediction;
+		private final String failure;
+
+		private Result(int index, String id, R prediction, String failure) {
+			this.index = index;
+			this.id = id;
+			this.prediction = prediction;
+			this.failure = failure;
+		}
+
+		/**
+		 * The index of the molecule in the input (0 being the first molecule)
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * The identifier of the molecule, from the ID property or title if set, otherwise {@code null}
+		 */
+		public String getId() {
+			return id;
+		}
+
+		public R getPrediction() {
+			return prediction;
+		}
+
+		public boolean isFailed() {
+			return failure != null;
+		}
+
+		public String getFailure() {
+			return failure;
+		}
+
+		@Override
+		public String toString() {
+			String name = id != null ? id : "#" + index;
+			return isFailed() ? String.format("%s: failed (%s)", name, failure) : String.format("%s: %s", name, prediction);
+		}
+	}
+
+	private final PredictorFactory<R> factory;
+	private final int numThreads;
+	private final int batchSize;
+	private final ExecutorService pool;
+	private final ThreadLocal<PredictFunction<R>> predictors = new ThreadLocal<>();
+	private String idProperty;
+
+	public BatchPredictor(PredictorFactory<R> factory) {
+		this(factory, Runtime.getRuntime().availableProcessors(), DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param factory creates the predict function of each worker thread
+	 * @param numThreads the number of worker threads
+	 * @param batchSize the number of molecules handed to a worker at a time
+	 */
+	public BatchPredictor(PredictorFactory<R> factory, int numThreads, int batchSize) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("Number of threads must be at least 1, got: " + numThreads);
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1, got: " + batchSize);
+		this.factory = factory;
+		this.numThreads = numThreads;
+		this.batchSize = batchSize;
+		this.pool = Executors.newFixedThreadPool(numThreads);
+	}
+
+	/**
+	 * Use a property of the molecules as identifier, instead of the title
+	 */
+	public BatchPredictor<R> withIdProperty(String property) {
+		this.idProperty = property;
+		return this;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Predict all molecules, the predictions are made as the returned iterator is consumed. Can be called
+	 * several times (also concurrently), using the same worker threads and predictors
+	 * @param molecules the molecules to predict
+	 * @return the results, in the same order as the input. Should be closed if not fully consumed
+	 * @throws IllegalStateException if the BatchPredictor is closed
+	 */
+	public ResultIterator predict(Iterator<IAtomContainer> molecules) {
+		if (pool.isShutdown())
+			throw new IllegalStateException("BatchPredictor is closed");
+		return new ResultIterator(molecules);
+	}
+
+	public ResultIterator predict(Iterable<IAtomContainer> molecules) {
+		return predict(molecules.iterator());
+	}
+
+	public class ResultIterator implements Iterator<Result<R>>, AutoCloseable {
+
+		private final Iterator<IAtomContainer> molecules;
+		private final Deque<Future<List<Result<R>>>> inFlight = new ArrayDeque<>();
+		// Keep a couple of batches queued per thread so workers never wait for the reader
+		private final int maxBatchesInFlight = 2 * numThreads;
+		private Iterator<Result<R>> currentBatch = Collections.emptyIterator();
+		private int numRead = 0;
+		private int numFailed = 0;
+		private boolean closed = false;
+
+		private ResultIterator(Iterator<IAtomContainer> molecules) {
+			this.molecules = molecules;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!currentBatch.hasNext()) {
+				fillQueue();
+				if (inFlight.isEmpty()) {
+					close();
+					return false;
+				}
+				currentBatch = getResult(inFlight.poll()).iterator();
+			}
+			return true;
+		}
+
+		@Override
+		public Result<R> next() {
+			if (!hasNext())
+				throw new NoSuchElementException("No more results");
+			Result<R> r = currentBatch.next();
+			if (r.isFailed())
+				numFailed++;
+			return r;
+		}
+
+		private void fillQueue() {
+			while (!closed && inFlight.size() < maxBatchesInFlight && molecules.hasNext()) {
+				List<IAtomContainer> batch = new ArrayList<>(batchSize);
+				while (molecules.hasNext() && batch.size() < batchSize)
+					batch.add(molecules.next());
+				final int firstIndex = numRead;
+				numRead += batch.size();
+				inFlight.add(pool.submit(() -> predictBatch(batch, firstIndex)));
+			}
+		}
+
+		private List<Result<R>> predictBatch(List<IAtomContainer> batch, int firstIndex) throws Exception {
+			PredictFunction<R> predictor = predictors.get();
+			if (predictor == null) {
+				predictor = factory.create();
+				predictors.set(predictor);
+			}
+			List<Result<R>> results = new ArrayList<>(batch.size());
+			for (int i = 0; i < batch.size(); i++) {
+				IAtomContainer mol = batch.get(i);
+				String id = getId(mol);
+				try {
+					results.add(new Result<>(firstIndex + i, id, predictor.predict(mol), null));
+				} catch (Exception e) {
+					results.add(new Result<>(firstIndex + i, id, null,
+							e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName()));
+				}
+			}
+			return results;
+		}
+
+		private String getId(IAtomContainer mol) {
+			Object id = mol.getProperty(idProperty != null ? idProperty : CDKConstants.TITLE);
+			return id != null ? id.toString() : null;
+		}
+
+		private List<Result<R>> getResult(Future<List<Result<R>>> future) {
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				close();
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while predicting", e);
+			} catch (ExecutionException e) {
+				// Only failing to create the predictor ends up here, failed molecules are part of the results
+				close();
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw new IllegalStateException("Failed creating predictor: " + e.getCause().getMessage(), e.getCause());
+			}
+		}
+
+		/**
+		 * The number of molecules read from the input so far
+		 */
+		public int getNumRead() {
+			return numRead;
+		}
+
+		/**
+		 * The number of failed results returned so far
+		 */
+		public int getNumFailed() {
+			return numFailed;
+		}
+
+		/**
+		 * Stop predicting the remaining molecules, the worker threads are kept for later calls to predict
+		 */
+		@Override
+		public void close() {
+			closed = true;
+			currentBatch = Collections.emptyIterator();
+			for (Future<List<Result<R>>> f : inFlight)
+				f.cancel(true);
+			inFlight.clear();
+		}
+	}
+
+	/**
+	 * Stop the worker threads, after which no more predictions can be made
+	 */
+	@Override
+	public void close() {
+		pool.shutdownNow();
+	}
+
+}
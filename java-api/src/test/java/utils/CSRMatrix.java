@@ -0,0 +1,163 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.arosbio.data.DataRecord;
+import com.arosbio.data.Dataset;
+import com.arosbio.data.Dataset.SubSet;
+import com.arosbio.data.SparseFeature;
+import com.arosbio.data.SparseFeatureImpl;
+import com.arosbio.data.SparseVector;
+
+/*
+ * Records stored in compressed sparse row (CSR) format, i.e. using a few primitive arrays instead of
+ * one object per feature. The features of row i are found at positions [rowOffsets[i], rowOffsets[i+1])
+ * in the indices and values arrays. The rows can be converted to the CPSign data classes using the
+ * getRecord, toSubSet or toDataset methods.
+ */
+public class CSRMatrix {
+
+	private final double[] labels;
+	private final int[] rowOffsets;
+	private final int[] indices;
+	private final double[] values;
+
+	public CSRMatrix(double[] labels, int[] rowOffsets, int[] indices, double[] values) {
+		if (rowOffsets.length != labels.length + 1)
+			throw new IllegalArgumentException("Row offsets must be one longer than the number of labels");
+		if (indices.length != values.length || rowOffsets[labels.length] != indices.length)
+			throw new IllegalArgumentException("Indices and values must have the same length as given by the row offsets");
+		this.labels = labels;
+		this.rowOffsets = rowOffsets;
+		this.indices = indices;
+		this.values = values;
+	}
+
+	/**
+	 * Concatenate several matrices, keeping the order of the rows
+	 * @param parts the matrices to concatenate
+	 * @return a matrix with all rows
+	 */
+	public static CSRMatrix concat(List<CSRMatrix> parts) {
+		int numRows = 0;
+		int numNonZeros = 0;
+		for (CSRMatrix m : parts) {
+			numRows += m.getNumRows();
+			numNonZeros += m.getNumNonZeros();
+		}
+		double[] labels = new double[numRows];
+		int[] rowOffsets = new int[numRows + 1];
+		int[] indices = new int[numNonZeros];
+		double[] values = new double[numNonZeros];
+
+		int row = 0, pos = 0;
+		for (CSRMatrix m : parts) {
+			System.arraycopy(m.labels, 0, labels, row, m.getNumRows());
+			for (int i = 0; i < m.getNumRows(); i++)
+				rowOffsets[row + i] = pos + m.rowOffsets[i];
+			System.arraycopy(m.indices, 0, indices, pos, m.getNumNonZeros());
+			System.arraycopy(m.values, 0, values, pos, m.getNumNonZeros());
+			row += m.getNumRows();
+			pos += m.getNumNonZeros();
+		}
+		rowOffsets[numRows] = pos;
+		return new CSRMatrix(labels, rowOffsets, indices, values);
+	}
+
+	public int getNumRows() {
+		return labels.length;
+	}
+
+	public int getNumNonZeros() {
+		return indices.length;
+	}
+
+	public double getLabel(int row) {
+		return labels[row];
+	}
+
+	/**
+	 * The position of the first feature of the row, in the arrays of {@link #getIndices()} and {@link #getValues()}
+	 */
+	public int getRowStart(int row) {
+		return rowOffsets[row];
+	}
+
+	/**
+	 * The position after the last feature of the row, in the arrays of {@link #getIndices()} and {@link #getValues()}
+	 */
+	public int getRowEnd(int row) {
+		return rowOffsets[row + 1];
+	}
+
+	public double[] getLabels() {
+		return labels;
+	}
+
+	public int[] getRowOffsets() {
+		return rowOffsets;
+	}
+
+	public int[] getIndices() {
+		return indices;
+	}
+
+	public double[] getValues() {
+		return values;
+	}
+
+	/**
+	 * Get the largest feature index of all rows
+	 * @return the largest index, or -1 if the matrix has no features
+	 */
+	public int getMaxIndex() {
+		int max = -1;
+		for (int index : indices)
+			max = Math.max(max, index);
+		return max;
+	}
+
+	public DataRecord getRecord(int row) {
+		List<SparseFeature> features = new ArrayList<>(getRowEnd(row) - getRowStart(row));
+		for (int k = getRowStart(row); k < getRowEnd(row); k++)
+			features.add(new SparseFeatureImpl(indices[k], values[k]));
+		return new DataRecord(labels[row], new SparseVector(features));
+	}
+
+	public SubSet toSubSet() {
+		SubSet records = new SubSet();
+		for (int row = 0; row < getNumRows(); row++)
+			records.add(getRecord(row));
+		return records;
+	}
+
+	public Dataset toDataset() {
+		Dataset dataset = new Dataset();
+		dataset.setDataset(toSubSet());
+		return dataset;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof CSRMatrix))
+			return false;
+		CSRMatrix other = (CSRMatrix) obj;
+		return Arrays.equals(labels, other.labels) && Arrays.equals(rowOffsets, other.rowOffsets)
+				&& Arrays.equals(indices, other.indices) && Arrays.equals(values, other.values);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * Arrays.hashCode(labels) + Arrays.hashCode(indices);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("CSRMatrix[rows=%d, non-zeros=%d]", getNumRows(), getNumNonZeros());
+	}
+
+}
@@ -0,0 +1,459 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Finds the record boundaries of SDF and CSV files without parsing any chemistry, i.e. the
+ * '$$$$' delimiters of SDF files and the rows of CSV files. The result is a RecordIndex holding
+ * the byte offset of each record (in the uncompressed data), which can be used for counting,
+ * random access to single records, sampling and splitting a file into shards that are parsed in parallel.
+ *
+ * Gzipped files are supported, but note that random access into a gzipped file requires
+ * decompressing all data before the requested offset.
+ */
+public class ChemFileScanner {
+
+	public enum Format {
+		SDF, CSV
+	}
+
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	public static RecordIndex scanSDF(URI file) throws IOException {
+		return scan(file, Format.SDF, false);
+	}
+
+	public static RecordIndex scanCSV(URI file, boolean hasHeader) throws IOException {
+		return scan(file, Format.CSV, hasHeader);
+	}
+
+	public static RecordIndex scan(URI file, Format format, boolean hasHeader) throws IOException {
+		boolean gzipped = isGzipped(file);
+		try (InputStream in = open(file, gzipped)){
+			return format == Format.SDF ? scanSDF(in, file, gzipped) : scanCSV(in, file, gzipped, hasHeader);
+		}
+	}
+
+	private static RecordIndex scanSDF(InputStream in, URI file, boolean gzipped) throws IOException {
+		LongList offsets = new LongList();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long pos = 0;
+		long recordStart = 0;
+		boolean recordHasContent = false;
+		// State for matching a line that consists of '$$$$' (optionally followed by whitespace)
+		int lineLength = 0;
+		boolean lineIsDelimiter = true;
+
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			for (int i = 0; i < read; i++, pos++) {
+				byte b = buffer[i];
+				if (b == '\n') {
+					if (lineIsDelimiter && lineLength >= 4) {
+						offsets.add(recordStart);
+						recordStart = pos + 1;
+						recordHasContent = false;
+					}
+					lineLength = 0;
+					lineIsDelimiter = true;
+					continue;
+				}
+				if (lineLength < 4)
+					lineIsDelimiter &= b == '$';
+				else
+					lineIsDelimiter &= b == ' ' || b == '\t' || b == '\r';
+				lineLength++;
+				recordHasContent |= !isWhitespace(b);
+			}
+		}
+		if (lineIsDelimiter && lineLength >= 4) {
+			// Delimiter on the last line, without trailing line break
+			offsets.add(recordStart);
+			recordStart = pos;
+			recordHasContent = false;
+		}
+		// Last record might be missing the delimiter
+		if (recordHasContent) {
+			offsets.add(recordStart);
+			recordStart = pos;
+		}
+		return new RecordIndex(file, gzipped, Format.SDF, 0, offsets.toArray(), recordStart);
+	}
+
+	private static RecordIndex scanCSV(InputStream in, URI file, boolean gzipped, boolean hasHeader) throws IOException {
+		LongList offsets = new LongList();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long pos = 0;
+		long rowStart = 0;
+		long headerLength = 0;
+		boolean inQuotes = false;
+		boolean rowHasContent = false;
+		boolean headerPending = hasHeader;
+
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			for (int i = 0; i < read; i++, pos++) {
+				byte b = buffer[i];
+				if (b == '"') {
+					// An escaped quote ("") toggles twice, leaving the state unchanged
+					inQuotes = !inQuotes;
+				} else if (b == '\n' && !inQuotes) {
+					if (rowHasContent) {
+						if (headerPending) {
+							headerLength = pos + 1;
+							headerPending = false;
+						} else {
+							offsets.add(rowStart);
+						}
+					}
+					rowStart = pos + 1;
+					rowHasContent = false;
+					continue;
+				}
+				rowHasContent |= !isWhitespace(b);
+			}
+		}
+		if (rowHasContent) {
+			if (headerPending)
+				headerLength = pos;
+			else
+				offsets.add(rowStart);
+		}
+		// Trailing empty lines are not part of the last record
+		long end = rowHasContent ? pos : rowStart;
+		return new RecordIndex(file, gzipped, Format.CSV, headerLength, offsets.toArray(), end);
+	}
+
+	/**
+	 * The byte offsets of all records in a file. Record {@code i} spans the bytes
+	 * {@code [getOffset(i), getOffset(i+1))} of the (uncompressed) file.
+	 */
+	public static class RecordIndex {
+
+		private final URI file;
+		private final boolean gzipped;
+		private final Format format;
+		private final long headerLength;
+		private final long[] offsets;
+		private final long endOffset;
+
+		private RecordIndex(URI file, boolean gzipped, Format format, long headerLength, long[] offsets, long endOffset) {
+			this.file = file;
+			this.gzipped = gzipped;
+			this.format = format;
+			this.headerLength = headerLength;
+			this.offsets = offsets;
+			this.endOffset = endOffset;
+		}
+
+		public URI getFile() {
+			return file;
+		}
+
+		public boolean isGzipped() {
+			return gzipped;
+		}
+
+		public Format getFormat() {
+			return format;
+		}
+
+		/**
+		 * The number of records in the file
+		 */
+		public int size() {
+			return offsets.length;
+		}
+
+		/**
+		 * The number of bytes of the CSV header, or 0 if no header (or a SDF file)
+		 */
+		public long getHeaderLength() {
+			return headerLength;
+		}
+
+		public long getOffset(int record) {
+			return record == offsets.length ? endOffset : offsets[record];
+		}
+
+		public long getLength(int record) {
+			return getOffset(record + 1) - offsets[record];
+		}
+
+		/**
+		 * Split the records into (at most) {@code numShards} consecutive ranges of roughly equal size
+		 * @param numShards number of shards
+		 * @return the shards, each as an array {@code [fromRecord, toRecord)}
+		 */
+		public List<int[]> getShards(int numShards) {
+			if (numShards < 1)
+				throw new IllegalArgumentException("Number of shards must be at least 1, got: " + numShards);
+			List<int[]> shards = new ArrayList<>(numShards);
+			int n = Math.min(numShards, Math.max(size(), 1));
+			for (int i = 0; i < n; i++) {
+				int from = (int) ((long) size() * i / n);
+				int to = (int) ((long) size() * (i + 1) / n);
+				shards.add(new int[] {from, to});
+			}
+			return shards;
+		}
+
+		/**
+		 * Draw a random sample of records (without replacement)
+		 * @param sampleSize the number of records to draw
+		 * @param seed the RNG seed
+		 * @return the sorted indices of the sampled records
+		 */
+		public int[] sample(int sampleSize, long seed) {
+			int k = Math.min(sampleSize, size());
+			Random rng = new Random(seed);
+			// Reservoir sampling of the record indices
+			int[] reservoir = new int[k];
+			for (int i = 0; i < size(); i++) {
+				if (i < k) {
+					reservoir[i] = i;
+				} else {
+					int j = rng.nextInt(i + 1);
+					if (j < k)
+						reservoir[j] = i;
+				}
+			}
+			Arrays.sort(reservoir);
+			return reservoir;
+		}
+
+		/**
+		 * Opens a stream with the (uncompressed) bytes of the records {@code [fromRecord, toRecord)}.
+		 * For CSV files with a header, the header is included first in the stream.
+		 * @param fromRecord first record, inclusive
+		 * @param toRecord last record, exclusive
+		 * @return a stream that can be parsed using the normal readers
+		 * @throws IOException if failing to open the file
+		 */
+		public InputStream openRecords(int fromRecord, int toRecord) throws IOException {
+			if (fromRecord < 0 || toRecord > size() || fromRecord > toRecord)
+				throw new IndexOutOfBoundsException("Invalid record range [" + fromRecord + "," + toRecord + ") for file with " + size() + " records");
+			InputStream records = openRange(getOffset(fromRecord), getOffset(toRecord));
+			if (headerLength <= 0)
+				return records;
+			return new SequenceInputStream(openRange(0, headerLength), records);
+		}
+
+		public InputStream openRecord(int record) throws IOException {
+			return openRecords(record, record + 1);
+		}
+
+		/**
+		 * Opens a stream with the (uncompressed) bytes of the given records only, e.g. a sample drawn using
+		 * {@link #sample(int, long)}. The file is read once, skipping the bytes of all other records. For CSV
+		 * files with a header, the header is included first in the stream.
+		 * @param records the records, in ascending order
+		 * @return a stream that can be parsed using the normal readers
+		 * @throws IOException if failing to open the file
+		 */
+		public InputStream openRecords(int[] records) throws IOException {
+			for (int i = 0; i < records.length; i++) {
+				if (records[i] < 0 || records[i] >= size())
+					throw new IndexOutOfBoundsException("Invalid record " + records[i] + " for file with " + size() + " records");
+				if (i > 0 && records[i] <= records[i - 1])
+					throw new IllegalArgumentException("Records must be given in ascending order");
+			}
+			InputStream selected = new SelectedRecordsInputStream(open(file, gzipped), this, records);
+			if (headerLength <= 0)
+				return selected;
+			return new SequenceInputStream(openRange(0, headerLength), selected);
+		}
+
+		private InputStream openRange(long from, long to) throws IOException {
+			if (from == to)
+				return new ByteArrayInputStream(new byte[0]);
+			InputStream in;
+			if (gzipped) {
+				in = open(file, true);
+				skipFully(in, from);
+			} else {
+				FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+				channel.position(from);
+				in = new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE);
+			}
+			return new BoundedInputStream(in, to - from);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("RecordIndex[%s, format=%s, records=%d]", file, format, size());
+		}
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+
+	private static void skipFully(InputStream in, long n) throws IOException {
+		long remaining = n;
+		while (remaining > 0) {
+			long skipped = in.skip(remaining);
+			if (skipped <= 0) {
+				if (in.read() < 0)
+					throw new IOException("Unexpected end of file, index is not valid for the file");
+				skipped = 1;
+			}
+			remaining -= skipped;
+		}
+	}
+
+	private static boolean isGzipped(URI file) throws IOException {
+		try (InputStream in = file.toURL().openStream()){
+			int b1 = in.read(), b2 = in.read();
+			return b1 == (GZIPInputStream.GZIP_MAGIC & 0xff) && b2 == (GZIPInputStream.GZIP_MAGIC >> 8);
+		}
+	}
+
+	private static InputStream open(URI file, boolean gzipped) throws IOException {
+		InputStream in = file.toURL().openStream();
+		if (gzipped)
+			return new BufferedInputStream(new GZIPInputStream(in, 64 * 1024), BUFFER_SIZE);
+		return new BufferedInputStream(in, BUFFER_SIZE);
+	}
+
+	private static class BoundedInputStream extends FilterInputStream {
+		private long remaining;
+
+		BoundedInputStream(InputStream in, long length) {
+			super(in);
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int b = super.read();
+			if (b >= 0)
+				remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int n = super.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0)
+				remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the bytes of a subset of the records, from a single pass over the file
+	 */
+	private static class SelectedRecordsInputStream extends InputStream {
+		private final InputStream in;
+		private final RecordIndex index;
+		private final int[] records;
+		private int next = 0;
+		private long position = 0;
+		private long remaining = 0;
+
+		SelectedRecordsInputStream(InputStream in, RecordIndex index, int[] records) {
+			this.in = in;
+			this.index = index;
+			this.records = records;
+		}
+
+		/**
+		 * Move to the next record with bytes left, returns {@code false} if no records are left
+		 */
+		private boolean advance() throws IOException {
+			while (remaining <= 0) {
+				if (next >= records.length)
+					return false;
+				int record = records[next++];
+				skipFully(in, index.getOffset(record) - position);
+				position = index.getOffset(record);
+				remaining = index.getLength(record);
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!advance())
+				return -1;
+			int b = in.read();
+			if (b >= 0) {
+				position++;
+				remaining--;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!advance())
+				return -1;
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0) {
+				position += n;
+				remaining -= n;
+			}
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	private static class LongList {
+		private long[] data = new long[1024];
+		private int size = 0;
+
+		void add(long value) {
+			if (size == data.length)
+				data = Arrays.copyOf(data, data.length * 2);
+			data[size++] = value;
+		}
+
+		long[] toArray() {
+			return Arrays.copyOf(data, size);
+		}
+	}
+
+}
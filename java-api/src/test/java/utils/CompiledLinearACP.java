@@ -0,0 +1,383 @@
+package utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.arosbio.data.DataRecord;
+import com.arosbio.data.FeatureVector;
+import com.arosbio.data.FeatureVector.Feature;
+import com.arosbio.data.SparseFeature;
+import com.arosbio.data.SparseFeatureImpl;
+import com.arosbio.data.SparseVector;
+import com.arosbio.ml.algorithms.ScoringClassifier;
+
+import utils.DataSplits.Split;
+
+/*
+ * An aggregated (Mondrian) conformal classifier for linear scoring classifiers (e.g. LinearSVC), compiled
+ * into primitive arrays for fast prediction. The weights of all aggregated models are stacked into a single
+ * matrix, laid out by feature so that a prediction is one pass over the non-zero features of the (sparse)
+ * input, updating the scores of all models and labels at once. The nonconformity scores of the calibration
+ * sets are kept as sorted arrays, so each p-value is a binary search. The model objects are only used while
+ * training and are not needed for prediction or stored by write.
+ *
+ * The weights are extracted from each trained model by predicting the empty vector (giving the intercept) and
+ * a unit vector for each feature present in the training data. The extracted weights are checked against the
+ * scores of the model for all calibration records, and training fails if the classifier is not linear. The
+ * nonconformity measure is the negative score of the label (as NegativeDistanceToHyperplaneNCM), the p-values
+ * are non-smoothed (as the StandardPValue calculator, whereas CPSign uses smoothed p-values by default) and
+ * the p-values of the models are aggregated by their median (as the ParallelACPTrainer). Using double precision,
+ * the p-values are thus the same as those of an ACPClassifier with the same splits, NCM and p-value calculator.
+ * Optionally the weights are stored in single precision, halving the memory - the calibration then uses the
+ * same weights, so the p-values remain valid.
+ */
+public class CompiledLinearACP {
+
+	private static final int MAGIC = 0x4C414350; // "LACP"
+
+	private final ScoringClassifier classifier;
+	private final int numModels;
+	private final double calibrationRatio;
+	private final long seed;
+	private boolean singlePrecision = false;
+
+	private int[] labels;
+	private int numFeatures;
+	// weights[feature * numColumns + model * labels.length + label], with one of them used depending on the precision
+	private double[] weights;
+	private float[] weightsFloat;
+	private double[] intercepts;
+	// calibration[model * labels.length + label] - the sorted nonconformity scores of the calibration records of that label
+	private double[][] calibration;
+
+	/**
+	 * @param classifier the (linear) scoring classifier, which is cloned for each model
+	 * @param numModels the number of aggregated models
+	 * @param calibrationRatio the ratio of the data used for calibration in each model
+	 * @param seed the seed used for splitting the data
+	 */
+	public CompiledLinearACP(ScoringClassifier classifier, int numModels, double calibrationRatio, long seed) {
+		if (numModels < 1)
+			throw new IllegalArgumentException("Number of models must be at least 1, got: " + numModels);
+		if (calibrationRatio <= 0 || calibrationRatio >= 1)
+			throw new IllegalArgumentException("Calibration ratio must be in (0,1), got: " + calibrationRatio);
+		this.classifier = classifier;
+		this.numModels = numModels;
+		this.calibrationRatio = calibrationRatio;
+		this.seed = seed;
+	}
+
+	/**
+	 * A loaded predictor, that has no classifier and can only be used for prediction
+	 */
+	private CompiledLinearACP(int numModels) {
+		this.classifier = null;
+		this.numModels = numModels;
+		this.calibrationRatio = Double.NaN;
+		this.seed = 0;
+	}
+
+	/**
+	 * Store the weights in single precision (float) instead of double, must be set before training
+	 */
+	public CompiledLinearACP singlePrecision(boolean singlePrecision) {
+		this.singlePrecision = singlePrecision;
+		return this;
+	}
+
+	public boolean isSinglePrecision() {
+		return singlePrecision;
+	}
+
+	public boolean isTrained() {
+		return intercepts != null;
+	}
+
+	public int getNumModels() {
+		return numModels;
+	}
+
+	public int[] getLabels() {
+		return labels.clone();
+	}
+
+	/**
+	 * Train the models, extract their weights and compute the calibration scores
+	 * @param records the training data
+	 */
+	public void train(List<DataRecord> records) {
+		if (classifier == null)
+			throw new IllegalStateException("A loaded predictor cannot be trained, create a new predictor instead");
+		TreeSet<Integer> labelSet = new TreeSet<>();
+		int maxFeature = -1;
+		for (DataRecord r : records) {
+			labelSet.add((int) r.getLabel());
+			maxFeature = Math.max(maxFeature, r.getFeatures().getLargestFeatureIndex());
+		}
+		if (labelSet.size() < 2)
+			throw new IllegalArgumentException("Classification requires at least two labels, got: " + labelSet);
+		int[] trainedLabels = labelSet.stream().mapToInt(Integer::intValue).toArray();
+		int numLabels = trainedLabels.length;
+		int numColumns = numModels * numLabels;
+		int trainedNumFeatures = maxFeature + 1;
+
+		// Only features present in the training data can have a non-zero weight
+		boolean[] present = new boolean[trainedNumFeatures];
+		for (DataRecord r : records)
+			for (Feature f : r.getFeatures())
+				present[f.getIndex()] = true;
+
+		double[] w = new double[trainedNumFeatures * numColumns];
+		double[] b = new double[numColumns];
+		List<int[]> calibrationIndices = new ArrayList<>(numModels);
+		List<Split> splits = DataSplits.randomSplits(records.size(), numModels, calibrationRatio, seed);
+		for (int m = 0; m < numModels; m++) {
+			Split s = splits.get(m);
+			ScoringClassifier model = classifier.clone();
+			model.train(DataSplits.select(records, s.getTrainingIndices()));
+
+			int col = m * numLabels;
+			double[] intercept = scores(model, new SparseVector(new ArrayList<>()), trainedLabels);
+			System.arraycopy(intercept, 0, b, col, numLabels);
+			for (int j = 0; j < trainedNumFeatures; j++) {
+				if (!present[j])
+					continue;
+				List<SparseFeature> unit = new ArrayList<>();
+				unit.add(new SparseFeatureImpl(j, 1));
+				double[] s1 = scores(model, new SparseVector(unit), trainedLabels);
+				for (int l = 0; l < numLabels; l++)
+					w[j * numColumns + col + l] = s1[l] - intercept[l];
+			}
+			verifyLinear(model, w, b, trainedNumFeatures, numColumns, col, trainedLabels, records, s.getHeldOutIndices());
+			calibrationIndices.add(s.getHeldOutIndices());
+		}
+
+		this.labels = trainedLabels;
+		this.numFeatures = trainedNumFeatures;
+		this.intercepts = b;
+		if (singlePrecision) {
+			weightsFloat = new float[w.length];
+			for (int i = 0; i < w.length; i++)
+				weightsFloat[i] = (float) w[i];
+			weights = null;
+		} else {
+			weights = w;
+			weightsFloat = null;
+		}
+
+		// Calibrate using the compiled weights, so that prediction and calibration use the same scores
+		double[][] calib = new double[numColumns][];
+		for (int m = 0; m < numModels; m++) {
+			List<List<Double>> perLabel = new ArrayList<>();
+			for (int l = 0; l < numLabels; l++)
+				perLabel.add(new ArrayList<>());
+			for (int i : calibrationIndices.get(m)) {
+				DataRecord r = records.get(i);
+				int l = Arrays.binarySearch(labels, (int) r.getLabel());
+				perLabel.get(l).add(-score(r.getFeatures(), m * numLabels + l));
+			}
+			for (int l = 0; l < numLabels; l++) {
+				double[] alphas = perLabel.get(l).stream().mapToDouble(Double::doubleValue).toArray();
+				Arrays.sort(alphas);
+				calib[m * numLabels + l] = alphas;
+			}
+		}
+		this.calibration = calib;
+	}
+
+	private static double[] scores(ScoringClassifier model, FeatureVector features, int[] labels) {
+		Map<Integer,Double> scores = model.predictScores(features);
+		double[] result = new double[labels.length];
+		for (int l = 0; l < labels.length; l++) {
+			Double s = scores.get(labels[l]);
+			if (s == null && labels.length == 2 && scores.size() == 1)
+				// Binary models may only give the score of one label, the other being its negation
+				s = -scores.values().iterator().next();
+			if (s == null)
+				throw new IllegalArgumentException("Classifier gave no score for label " + labels[l]);
+			result[l] = s;
+		}
+		return result;
+	}
+
+	/**
+	 * Check that the extracted weights reproduce the scores of the model, for all given (calibration) records
+	 */
+	private static void verifyLinear(ScoringClassifier model, double[] w, double[] b, int numFeatures, int numColumns,
+			int col, int[] labels, List<DataRecord> records, int[] indices) {
+		for (int index : indices) {
+			FeatureVector features = records.get(index).getFeatures();
+			double[] expected = scores(model, features, labels);
+			for (int l = 0; l < labels.length; l++) {
+				double compiled = b[col + l];
+				for (Feature f : features)
+					if (f.getIndex() < numFeatures)
+						compiled += w[f.getIndex() * numColumns + col + l] * f.getValue();
+				if (Math.abs(compiled - expected[l]) > 1e-6 * (1 + Math.abs(expected[l])))
+					throw new IllegalArgumentException(String.format(
+							"Classifier is not linear, compiled score %s differs from the score of the model %s", compiled, expected[l]));
+			}
+		}
+	}
+
+	/**
+	 * The score of a single column (model and label), used for calibration
+	 */
+	private double score(FeatureVector features, int column) {
+		int numColumns = intercepts.length;
+		double s = intercepts[column];
+		for (Feature f : features) {
+			if (f.getIndex() >= numFeatures)
+				continue;
+			int i = f.getIndex() * numColumns + column;
+			s += (weights != null ? weights[i] : weightsFloat[i]) * f.getValue();
+		}
+		return s;
+	}
+
+	/**
+	 * Compute the scores of all models and labels in a single pass over the features
+	 */
+	private double[] scoreAll(FeatureVector features) {
+		int numColumns = intercepts.length;
+		double[] s = intercepts.clone();
+		for (Feature f : features) {
+			if (f.getIndex() >= numFeatures)
+				continue;
+			int base = f.getIndex() * numColumns;
+			double v = f.getValue();
+			if (weights != null) {
+				for (int c = 0; c < numColumns; c++)
+					s[c] += weights[base + c] * v;
+			} else {
+				for (int c = 0; c < numColumns; c++)
+					s[c] += weightsFloat[base + c] * v;
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Predict the p-values of all labels
+	 * @param features the features of the test object
+	 * @return the p-value of each label
+	 */
+	public Map<Integer,Double> predict(FeatureVector features) {
+		if (!isTrained())
+			throw new IllegalStateException("Predictor not trained");
+		double[] scores = scoreAll(features);
+		Map<Integer,Double> pValues = new LinkedHashMap<>();
+		double[] modelPValues = new double[numModels];
+		for (int l = 0; l < labels.length; l++) {
+			for (int m = 0; m < numModels; m++) {
+				int c = m * labels.length + l;
+				modelPValues[m] = pValue(calibration[c], -scores[c]);
+			}
+			pValues.put(labels[l], ParallelACPTrainer.median(modelPValues));
+		}
+		return pValues;
+	}
+
+	/**
+	 * The (non-smoothed) p-value, {@code (#{calibration scores >= alpha} + 1) / (n + 1)}
+	 */
+	static double pValue(double[] sortedAlphas, double alpha) {
+		// Find the first calibration score that is >= alpha
+		int lo = 0, hi = sortedAlphas.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sortedAlphas[mid] < alpha)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return (sortedAlphas.length - lo + 1.0) / (sortedAlphas.length + 1);
+	}
+
+	/**
+	 * Save the compiled predictor. The scoring models are not needed, so the saved predictor only
+	 * contains the weights and calibration scores
+	 */
+	public void write(OutputStream os) throws IOException {
+		if (!isTrained())
+			throw new IllegalStateException("Predictor not trained");
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(MAGIC);
+		out.writeInt(numModels);
+		out.writeInt(labels.length);
+		for (int l : labels)
+			out.writeInt(l);
+		out.writeInt(numFeatures);
+		out.writeBoolean(weights == null);
+		for (double v : intercepts)
+			out.writeDouble(v);
+		if (weights != null) {
+			for (double v : weights)
+				out.writeDouble(v);
+		} else {
+			for (float v : weightsFloat)
+				out.writeFloat(v);
+		}
+		for (double[] alphas : calibration) {
+			out.writeInt(alphas.length);
+			for (double a : alphas)
+				out.writeDouble(a);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Load a predictor saved using {@link #write(OutputStream)}. The loaded predictor can only be used for prediction
+	 * @param is the saved predictor
+	 * @return the loaded predictor
+	 * @throws IOException if the data could not be read
+	 */
+	public static CompiledLinearACP read(InputStream is) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a saved compiled linear ACP");
+		int numModels = in.readInt();
+		if (numModels < 1)
+			throw new IOException("Invalid number of models: " + numModels);
+		int[] labels = new int[in.readInt()];
+		for (int l = 0; l < labels.length; l++)
+			labels[l] = in.readInt();
+		int numFeatures = in.readInt();
+		boolean singlePrecision = in.readBoolean();
+		int numColumns = numModels * labels.length;
+
+		CompiledLinearACP predictor = new CompiledLinearACP(numModels).singlePrecision(singlePrecision);
+		predictor.labels = labels;
+		predictor.numFeatures = numFeatures;
+		predictor.intercepts = new double[numColumns];
+		for (int c = 0; c < numColumns; c++)
+			predictor.intercepts[c] = in.readDouble();
+		if (singlePrecision) {
+			predictor.weightsFloat = new float[numFeatures * numColumns];
+			for (int i = 0; i < predictor.weightsFloat.length; i++)
+				predictor.weightsFloat[i] = in.readFloat();
+		} else {
+			predictor.weights = new double[numFeatures * numColumns];
+			for (int i = 0; i < predictor.weights.length; i++)
+				predictor.weights[i] = in.readDouble();
+		}
+		predictor.calibration = new double[numColumns][];
+		for (int c = 0; c < numColumns; c++) {
+			double[] alphas = new double[in.readInt()];
+			for (int i = 0; i < alphas.length; i++)
+				alphas[i] = in.readDouble();
+			predictor.calibration[c] = alphas;
+		}
+		return predictor;
+	}
+
+}
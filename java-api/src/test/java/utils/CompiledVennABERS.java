@@ -0,0 +1,499 @@
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.arosbio.data.DataRecord;
+import com.arosbio.data.FeatureVector;
+import com.arosbio.ml.algorithms.ScoringClassifier;
+
+import utils.DataSplits.Split;
+
+/*
+ * A cross Venn-ABERS predictor (as the AVAPClassifier with folded sampling) where the isotonic regressions
+ * are performed at training time instead of at prediction time. For each fold the p0 and p1 values are
+ * precomputed for every possible position of a test score among the calibration scores - either equal to
+ * one of the distinct calibration scores or in the gap between two of them - as these are the only things
+ * the isotonic regressions depend on. A prediction is then a binary search in each fold, plus merging the
+ * p0/p1 values of the folds into a single probability.
+ *
+ * The tables are computed from the greatest convex minorant of the cumulative sum diagram of the calibration
+ * scores, using the stack based algorithms of Vovk, Petej and Fedorova (Large-scale probabilistic predictors
+ * with and without guarantees of validity, 2015). Training is thus O(k log k) in the number of distinct calibration
+ * scores k of each fold (dominated by sorting the scores), and prediction is O(log k).
+ * Only binary classification is possible. The trained predictor (models and tables) can be saved using
+ * the write method and loaded again using read.
+ */
+public class CompiledVennABERS {
+
+	private static final int MAGIC = 0x56414352; // "VACR"
+
+	private final ScoringClassifier classifier;
+	private final int numFolds;
+	private final long seed;
+
+	private int negativeLabel, positiveLabel;
+	private List<ScoringClassifier> models = new ArrayList<>();
+	private List<CalibrationTable> tables = new ArrayList<>();
+
+	/**
+	 * @param classifier the scoring classifier, which is cloned for each fold
+	 * @param numFolds the number of folds (i.e. models)
+	 * @param seed the seed used for splitting the data into folds
+	 */
+	public CompiledVennABERS(ScoringClassifier classifier, int numFolds, long seed) {
+		if (numFolds < 2)
+			throw new IllegalArgumentException("Number of folds must be at least 2, got: " + numFolds);
+		this.classifier = classifier;
+		this.numFolds = numFolds;
+		this.seed = seed;
+	}
+
+	public boolean isTrained() {
+		return !models.isEmpty();
+	}
+
+	public int getNumFolds() {
+		return numFolds;
+	}
+
+	/**
+	 * Train the scoring models and precompute the calibration tables
+	 * @param records the training data, with exactly two different labels
+	 */
+	public void train(List<DataRecord> records) {
+		TreeSet<Integer> labels = new TreeSet<>();
+		for (DataRecord r : records)
+			labels.add((int) r.getLabel());
+		if (labels.size() != 2)
+			throw new IllegalArgumentException("Venn-ABERS requires exactly two labels, got: " + labels);
+		negativeLabel = labels.first();
+		positiveLabel = labels.last();
+
+		List<ScoringClassifier> trainedModels = new ArrayList<>(numFolds);
+		List<CalibrationTable> trainedTables = new ArrayList<>(numFolds);
+		for (Split s : DataSplits.folds(records.size(), numFolds, seed)) {
+			ScoringClassifier model = classifier.clone();
+			model.train(DataSplits.select(records, s.getTrainingIndices()));
+
+			int[] calib = s.getHeldOutIndices();
+			double[] scores = new double[calib.length];
+			boolean[] positive = new boolean[calib.length];
+			for (int i = 0; i < calib.length; i++) {
+				DataRecord r = records.get(calib[i]);
+				scores[i] = score(model, r.getFeatures());
+				positive[i] = (int) r.getLabel() == positiveLabel;
+			}
+			trainedModels.add(model);
+			trainedTables.add(CalibrationTable.compile(scores, positive));
+		}
+		models = trainedModels;
+		tables = trainedTables;
+	}
+
+	private double score(ScoringClassifier model, FeatureVector features) {
+		return model.predictScores(features).get(positiveLabel);
+	}
+
+	public Prediction predict(FeatureVector features) {
+		if (!isTrained())
+			throw new IllegalStateException("Predictor not trained");
+		double[] p0 = new double[models.size()];
+		double[] p1 = new double[models.size()];
+		for (int i = 0; i < models.size(); i++) {
+			double[] p = tables.get(i).lookup(score(models.get(i), features));
+			p0[i] = p[0];
+			p1[i] = p[1];
+		}
+		return new Prediction(negativeLabel, positiveLabel, p0, p1);
+	}
+
+	public Map<Integer,Double> predictProbabilities(FeatureVector features) {
+		return predict(features).getProbabilities();
+	}
+
+	public static class Prediction {
+		private final int negativeLabel, positiveLabel;
+		private final double[] p0, p1;
+		private final double probability;
+
+		private Prediction(int negativeLabel, int positiveLabel, double[] p0, double[] p1) {
+			this.negativeLabel = negativeLabel;
+			this.positiveLabel = positiveLabel;
+			this.p0 = p0;
+			this.p1 = p1;
+			this.probability = merge(p0, p1);
+		}
+
+		/**
+		 * The merged probabilities of the two labels
+		 */
+		public Map<Integer,Double> getProbabilities() {
+			Map<Integer,Double> probs = new HashMap<>();
+			probs.put(negativeLabel, 1 - probability);
+			probs.put(positiveLabel, probability);
+			return probs;
+		}
+
+		/**
+		 * The p0 values of each fold
+		 */
+		public double[] getP0() {
+			return p0.clone();
+		}
+
+		/**
+		 * The p1 values of each fold
+		 */
+		public double[] getP1() {
+			return p1.clone();
+		}
+
+		public double getMeanP0P1Width() {
+			double sum = 0;
+			for (int i = 0; i < p0.length; i++)
+				sum += p1[i] - p0[i];
+			return sum / p0.length;
+		}
+
+		public double getMedianP0P1Width() {
+			double[] widths = new double[p0.length];
+			for (int i = 0; i < p0.length; i++)
+				widths[i] = p1[i] - p0[i];
+			Arrays.sort(widths);
+			int n = widths.length;
+			return n % 2 == 1 ? widths[n / 2] : (widths[n / 2 - 1] + widths[n / 2]) / 2;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Prediction[probabilities=%s, mean width=%s]", getProbabilities(), getMeanP0P1Width());
+		}
+	}
+
+	/**
+	 * The p0 and p1 values of a single (inductive) Venn-ABERS predictor, looked up in the same precomputed
+	 * table as used for each fold
+	 * @param calibrationScores the scores of the calibration records
+	 * @param positive if each of the calibration records has the positive label
+	 * @param testScores the test scores
+	 * @return {@code [p0, p1]} for each of the test scores
+	 */
+	public static double[][] computeP0P1(double[] calibrationScores, boolean[] positive, double... testScores) {
+		if (calibrationScores.length == 0 || calibrationScores.length != positive.length)
+			throw new IllegalArgumentException("Calibration scores and labels must be non-empty and of the same length");
+		CalibrationTable table = CalibrationTable.compile(calibrationScores, positive);
+		double[][] result = new double[testScores.length][];
+		for (int i = 0; i < testScores.length; i++)
+			result[i] = table.lookup(testScores[i]);
+		return result;
+	}
+
+	/**
+	 * Merge the p0/p1 values of all folds using the geometric means, p = GM(p1) / (GM(1-p0) + GM(p1))
+	 */
+	static double merge(double[] p0, double[] p1) {
+		double logP1 = 0, logOneMinusP0 = 0;
+		for (int i = 0; i < p0.length; i++) {
+			logP1 += Math.log(p1[i]);
+			logOneMinusP0 += Math.log(1 - p0[i]);
+		}
+		double gmP1 = Math.exp(logP1 / p0.length);
+		double gmOneMinusP0 = Math.exp(logOneMinusP0 / p0.length);
+		return gmP1 / (gmOneMinusP0 + gmP1);
+	}
+
+	/**
+	 * The precomputed p0 and p1 values of a single fold. Position {@code 2i+1} corresponds to a test score
+	 * equal to the i:th distinct calibration score, and position {@code 2i} to a test score in the gap
+	 * below it (the last position being above all calibration scores)
+	 */
+	static class CalibrationTable {
+		final double[] distinctScores;
+		final double[] p0;
+		final double[] p1;
+
+		CalibrationTable(double[] distinctScores, double[] p0, double[] p1) {
+			this.distinctScores = distinctScores;
+			this.p0 = p0;
+			this.p1 = p1;
+		}
+
+		static CalibrationTable compile(double[] scores, boolean[] positive) {
+			// Group the calibration points by distinct score (ties are pooled in isotonic regression)
+			Integer[] order = new Integer[scores.length];
+			for (int i = 0; i < order.length; i++)
+				order[i] = i;
+			Arrays.sort(order, (a, b) -> Double.compare(scores[a], scores[b]));
+			double[] distinct = new double[scores.length];
+			double[] sums = new double[scores.length];
+			double[] weights = new double[scores.length];
+			int k = -1;
+			for (int idx : order) {
+				if (k < 0 || scores[idx] != distinct[k]) {
+					k++;
+					distinct[k] = scores[idx];
+				}
+				sums[k] += positive[idx] ? 1 : 0;
+				weights[k]++;
+			}
+			k++;
+			distinct = Arrays.copyOf(distinct, k);
+
+			// f0[i] and f1[i] are the fits at the test point when it is tied with the i:th (1-based) distinct score.
+			// A test score in a gap gives the same p1 as when tied with the score above it, and the same p0 as 
+			// when tied with the score below it. Below all scores p0 is 0, above all scores p1 is 1
+			double[] f1 = computeF1(sums, weights, k);
+			double[] f0 = computeF0(sums, weights, k);
+			double[] p0 = new double[2 * k + 1];
+			double[] p1 = new double[2 * k + 1];
+			for (int i = 0; i < k; i++) {
+				p0[2 * i + 1] = f0[i + 1];
+				p1[2 * i + 1] = f1[i + 1];
+				p0[2 * i] = i > 0 ? f0[i] : 0;
+				p1[2 * i] = f1[i + 1];
+			}
+			p0[2 * k] = f0[k];
+			p1[2 * k] = 1;
+			return new CalibrationTable(distinct, p0, p1);
+		}
+
+		/**
+		 * The points P_i of the cumulative sum diagram for i in [-1, k+1], stored at index i+1. P_0 = (0,0) and P_i is the 
+		 * (total weight, total sum) of the first i distinct scores. P_-1 and P_k+1 are set by the algorithms using them
+		 */
+		private static double[][] cumulativeSumDiagram(double[] sums, double[] weights, int k) {
+			double[] x = new double[k + 3];
+			double[] y = new double[k + 3];
+			for (int i = 1; i <= k; i++) {
+				x[i + 1] = x[i] + weights[i - 1];
+				y[i + 1] = y[i] + sums[i - 1];
+			}
+			return new double[][] {x, y};
+		}
+
+		/**
+		 * The fits for a test point with label 1, tied with each distinct score (algorithms 1 and 2 of Vovk et al.)
+		 */
+		private static double[] computeF1(double[] sums, double[] weights, int k) {
+			double[][] p = cumulativeSumDiagram(sums, weights, k);
+			double[] x = p[0], y = p[1];
+			x[0] = -1;
+			y[0] = -1;
+			// The corners of the greatest convex minorant of P_-1, .., P_k
+			PointStack s = new PointStack(k + 3);
+			s.push(x[0], y[0]);
+			s.push(x[1], y[1]);
+			for (int i = 1; i <= k; i++) {
+				while (s.size > 1 && cross(s.nextX(), s.nextY(), s.topX(), s.topY(), x[i + 1], y[i + 1]) <= 0)
+					s.pop();
+				s.push(x[i + 1], y[i + 1]);
+			}
+			s.reverse();
+
+			double[] f1 = new double[k + 1];
+			for (int i = 1; i <= k; i++) {
+				f1[i] = slope(s.topX(), s.topY(), s.nextX(), s.nextY());
+				// Move the test point past the (i-1):th distinct score
+				x[i] = x[i - 1] + x[i + 1] - x[i];
+				y[i] = y[i - 1] + y[i + 1] - y[i];
+				if (notBelow(x[i], y[i], s.topX(), s.topY(), s.nextX(), s.nextY()))
+					continue;
+				s.pop();
+				while (s.size > 1 && cross(x[i], y[i], s.topX(), s.topY(), s.nextX(), s.nextY()) <= 0)
+					s.pop();
+				s.push(x[i], y[i]);
+			}
+			return f1;
+		}
+
+		/**
+		 * The fits for a test point with label 0, tied with each distinct score (algorithms 3 and 4 of Vovk et al.)
+		 */
+		private static double[] computeF0(double[] sums, double[] weights, int k) {
+			double[][] p = cumulativeSumDiagram(sums, weights, k);
+			double[] x = p[0], y = p[1];
+			x[k + 2] = x[k + 1] + 1;
+			y[k + 2] = y[k + 1];
+			// The corners of the least concave majorant of P_0, .., P_k+1, from the right
+			PointStack s = new PointStack(k + 3);
+			s.push(x[k + 2], y[k + 2]);
+			s.push(x[k + 1], y[k + 1]);
+			for (int i = k - 1; i >= 0; i--) {
+				while (s.size > 1 && cross(s.nextX(), s.nextY(), s.topX(), s.topY(), x[i + 1], y[i + 1]) >= 0)
+					s.pop();
+				s.push(x[i + 1], y[i + 1]);
+			}
+			s.reverse();
+
+			double[] f0 = new double[k + 1];
+			for (int i = k; i >= 1; i--) {
+				f0[i] = slope(s.topX(), s.topY(), s.nextX(), s.nextY());
+				// Move the test point past the (i+1):th distinct score
+				x[i + 1] = x[i] + x[i + 2] - x[i + 1];
+				y[i + 1] = y[i] + y[i + 2] - y[i + 1];
+				if (notBelow(x[i + 1], y[i + 1], s.topX(), s.topY(), s.nextX(), s.nextY()))
+					continue;
+				s.pop();
+				while (s.size > 1 && cross(x[i + 1], y[i + 1], s.topX(), s.topY(), s.nextX(), s.nextY()) >= 0)
+					s.pop();
+				s.push(x[i + 1], y[i + 1]);
+			}
+			return f0;
+		}
+
+		/**
+		 * The cross product of (b - a) and (c - b), positive for a left turn
+		 */
+		private static double cross(double ax, double ay, double bx, double by, double cx, double cy) {
+			return (bx - ax) * (cy - by) - (by - ay) * (cx - bx);
+		}
+
+		private static double slope(double ax, double ay, double bx, double by) {
+			return (by - ay) / (bx - ax);
+		}
+
+		/**
+		 * If the point t is on or above the line through the points a and b
+		 */
+		private static boolean notBelow(double tx, double ty, double ax, double ay, double bx, double by) {
+			double m = (by - ay) / (bx - ax);
+			double b = (bx * ay - ax * by) / (bx - ax);
+			return ty >= tx * m + b;
+		}
+
+		/** A stack of points, stored in primitive arrays */
+		private static class PointStack {
+			final double[] x, y;
+			int size = 0;
+
+			PointStack(int capacity) {
+				x = new double[capacity];
+				y = new double[capacity];
+			}
+
+			void push(double px, double py) {
+				x[size] = px;
+				y[size] = py;
+				size++;
+			}
+
+			void pop() {
+				size--;
+			}
+
+			double topX() {
+				return x[size - 1];
+			}
+
+			double topY() {
+				return y[size - 1];
+			}
+
+			double nextX() {
+				return x[size - 2];
+			}
+
+			double nextY() {
+				return y[size - 2];
+			}
+
+			void reverse() {
+				for (int i = 0, j = size - 1; i < j; i++, j--) {
+					double tx = x[i], ty = y[i];
+					x[i] = x[j];
+					y[i] = y[j];
+					x[j] = tx;
+					y[j] = ty;
+				}
+			}
+		}
+
+		/**
+		 * @return {@code [p0, p1]} for the test score
+		 */
+		double[] lookup(double score) {
+			int i = Arrays.binarySearch(distinctScores, score);
+			int pos = i >= 0 ? 2 * i + 1 : 2 * (-i - 1);
+			return new double[] {p0[pos], p1[pos]};
+		}
+	}
+
+	/**
+	 * Save the trained predictor, including the scoring models of all folds
+	 */
+	public void write(OutputStream os) throws IOException {
+		if (!isTrained())
+			throw new IllegalStateException("Predictor not trained");
+		DataOutputStream out = new DataOutputStream(os);
+		out.writeInt(MAGIC);
+		out.writeInt(negativeLabel);
+		out.writeInt(positiveLabel);
+		out.writeInt(models.size());
+		for (int f = 0; f < models.size(); f++) {
+			CalibrationTable t = tables.get(f);
+			out.writeInt(t.distinctScores.length);
+			for (double v : t.distinctScores)
+				out.writeDouble(v);
+			for (int pos = 0; pos < t.p0.length; pos++) {
+				out.writeDouble(t.p0[pos]);
+				out.writeDouble(t.p1[pos]);
+			}
+			ByteArrayOutputStream model = new ByteArrayOutputStream();
+			models.get(f).saveToStream(model);
+			out.writeInt(model.size());
+			model.writeTo(out);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Load a predictor saved using {@link #write(OutputStream)}
+	 * @param is the saved predictor
+	 * @param classifier a classifier of the same type as used when training, used for loading the models of each fold
+	 * @return the loaded predictor
+	 * @throws IOException if the data could not be read
+	 */
+	public static CompiledVennABERS read(InputStream is, ScoringClassifier classifier) throws IOException {
+		DataInputStream in = new DataInputStream(is);
+		if (in.readInt() != MAGIC)
+			throw new IOException("Not a saved Venn-ABERS predictor");
+		int negativeLabel = in.readInt();
+		int positiveLabel = in.readInt();
+		int numFolds = in.readInt();
+		CompiledVennABERS predictor = new CompiledVennABERS(classifier, numFolds, 0);
+		predictor.negativeLabel = negativeLabel;
+		predictor.positiveLabel = positiveLabel;
+		for (int f = 0; f < numFolds; f++) {
+			int k = in.readInt();
+			double[] distinct = new double[k];
+			for (int i = 0; i < k; i++)
+				distinct[i] = in.readDouble();
+			double[] p0 = new double[2 * k + 1];
+			double[] p1 = new double[2 * k + 1];
+			for (int pos = 0; pos < p0.length; pos++) {
+				p0[pos] = in.readDouble();
+				p1[pos] = in.readDouble();
+			}
+			byte[] model = new byte[in.readInt()];
+			in.readFully(model);
+			ScoringClassifier m = classifier.clone();
+			m.loadFromStream(new ByteArrayInputStream(model));
+			predictor.tables.add(new CalibrationTable(distinct, p0, p1));
+			predictor.models.add(m);
+		}
+		return predictor;
+	}
+
+}
@@ -36,13 +36,13 @@ public class Config {
 
 	public static int getInt(String property, int def) {
 		try {
-			return Integer.getInteger(getProperties().getProperty(property));
+			return Integer.parseInt(getProperties().getProperty(property).trim());
 		} catch (Exception e) {return def;}
 	}
 
 	public static double getDouble(String property, double def) {
 		try {
-			return Double.parseDouble(getProperties().getProperty(property));
+			return Double.parseDouble(getProperties().getProperty(property).trim());
 		} catch (Exception e) {return def;}
 	}
 
@@ -0,0 +1,124 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.arosbio.data.DataRecord;
+import com.arosbio.data.Dataset.SubSet;
+
+/*
+ * Deterministic splits of a list of records, given as index arrays so that the same splits 
+ * can be computed once and reused (e.g. by all parameter combinations of a grid search, or 
+ * for training the members of an aggregated predictor in parallel). The splits only depend on 
+ * the number of records and the seed, never on which thread uses them.
+ */
+public class DataSplits {
+
+	public static class Split {
+		private final int[] first;
+		private final int[] second;
+
+		public Split(int[] first, int[] second) {
+			this.first = first;
+			this.second = second;
+		}
+
+		/**
+		 * The indices of the training records (i.e. proper training set for an ICP)
+		 */
+		public int[] getTrainingIndices() {
+			return first;
+		}
+
+		/**
+		 * The indices of the held out records (i.e. calibration set for an ICP, or test set for CV)
+		 */
+		public int[] getHeldOutIndices() {
+			return second;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("Split[training=%d, held out=%d]", first.length, second.length);
+		}
+	}
+
+	/**
+	 * Random splits, each shuffling the records independently (as for an ACP)
+	 * @param numRecords number of records
+	 * @param numSplits number of splits
+	 * @param heldOutRatio the fraction of records that are held out in each split
+	 * @param seed RNG seed
+	 * @return the splits
+	 */
+	public static List<Split> randomSplits(int numRecords, int numSplits, double heldOutRatio, long seed) {
+		if (heldOutRatio <= 0 || heldOutRatio >= 1)
+			throw new IllegalArgumentException("Held out ratio must be in the range (0,1), got: " + heldOutRatio);
+		int numHeldOut = (int) Math.round(numRecords * heldOutRatio);
+		if (numHeldOut < 1 || numHeldOut >= numRecords)
+			throw new IllegalArgumentException("Too few records (" + numRecords + ") for splitting using ratio " + heldOutRatio);
+		List<Split> splits = new ArrayList<>(numSplits);
+		for (int i = 0; i < numSplits; i++) {
+			int[] perm = permutation(numRecords, seed + i);
+			splits.add(new Split(
+					sorted(Arrays.copyOfRange(perm, numHeldOut, numRecords)),
+					sorted(Arrays.copyOfRange(perm, 0, numHeldOut))));
+		}
+		return splits;
+	}
+
+	/**
+	 * Folded splits, where each record is held out in exactly one split (as for a CCP or k-fold CV)
+	 * @param numRecords number of records
+	 * @param numFolds number of folds
+	 * @param seed RNG seed
+	 * @return the splits
+	 */
+	public static List<Split> folds(int numRecords, int numFolds, long seed) {
+		if (numFolds < 2 || numFolds > numRecords)
+			throw new IllegalArgumentException("Invalid number of folds (" + numFolds + ") for " + numRecords + " records");
+		int[] perm = permutation(numRecords, seed);
+		List<Split> splits = new ArrayList<>(numFolds);
+		for (int i = 0; i < numFolds; i++) {
+			int from = (int) ((long) numRecords * i / numFolds);
+			int to = (int) ((long) numRecords * (i + 1) / numFolds);
+			int[] train = new int[numRecords - (to - from)];
+			System.arraycopy(perm, 0, train, 0, from);
+			System.arraycopy(perm, to, train, from, numRecords - to);
+			splits.add(new Split(sorted(train), sorted(Arrays.copyOfRange(perm, from, to))));
+		}
+		return splits;
+	}
+
+	/**
+	 * Select the records at the given indices, keeping the records in the order of the indices
+	 */
+	public static SubSet select(List<DataRecord> records, int[] indices) {
+		SubSet selected = new SubSet();
+		for (int i : indices)
+			selected.add(records.get(i));
+		return selected;
+	}
+
+	private static int[] permutation(int n, long seed) {
+		int[] perm = new int[n];
+		for (int i = 0; i < n; i++)
+			perm[i] = i;
+		Random rng = new Random(seed);
+		for (int i = n - 1; i > 0; i--) {
+			int j = rng.nextInt(i + 1);
+			int tmp = perm[i];
+			perm[i] = perm[j];
+			perm[j] = tmp;
+		}
+		return perm;
+	}
+
+	private static int[] sorted(int[] indices) {
+		Arrays.sort(indices);
+		return indices;
+	}
+
+}
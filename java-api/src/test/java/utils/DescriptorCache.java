@@ -0,0 +1,235 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.smiles.SmiFlavor;
+import org.openscience.cdk.smiles.SmilesGenerator;
+
+import com.arosbio.cheminf.descriptors.ChemDescriptor;
+import com.arosbio.data.FeatureVector;
+import com.arosbio.data.FeatureVector.Feature;
+import com.arosbio.data.SparseFeature;
+import com.arosbio.data.SparseFeatureImpl;
+import com.arosbio.data.SparseVector;
+
+/*
+ * A persistent, size-bounded cache of computed descriptors, so that repeated runs on the same
+ * molecules can skip the (potentially very slow) descriptor computation. Each entry is stored as
+ * a small binary file, keyed by the hash of the canonical SMILES of the molecule together with the
+ * descriptor configuration. When the total size of the cache exceeds the given maximum, the least
+ * recently used entries are removed.
+ *
+ * Only descriptors with a fixed length should be cached, for the signatures descriptor the feature
+ * indices depend on the order the molecules were computed in.
+ */
+public class DescriptorCache {
+
+	public static final long DEFAULT_MAX_SIZE_BYTES = 512L * 1024 * 1024;
+	private static final String FILE_SUFFIX = ".bin";
+
+	private final Path directory;
+	private final long maxSizeBytes;
+	// access-ordered, i.e. the first entry is the least recently used
+	private final LinkedHashMap<String,Long> entries = new LinkedHashMap<>(1024, .75f, true);
+	private long totalSize = 0;
+	private long hits = 0, misses = 0;
+
+	public DescriptorCache(Path directory) throws IOException {
+		this(directory, DEFAULT_MAX_SIZE_BYTES);
+	}
+
+	public DescriptorCache(Path directory, long maxSizeBytes) throws IOException {
+		if (maxSizeBytes <= 0)
+			throw new IllegalArgumentException("Maximum cache size must be positive, got: " + maxSizeBytes);
+		this.directory = directory;
+		this.maxSizeBytes = maxSizeBytes;
+		Files.createDirectories(directory);
+		loadIndex();
+	}
+
+	private void loadIndex() throws IOException {
+		// Order existing entries by last modification time, which is updated on each hit
+		List<Path> files = new ArrayList<>();
+		try (Stream<Path> s = Files.walk(directory, 2)){
+			s.filter(p -> p.getFileName().toString().endsWith(FILE_SUFFIX)).forEach(files::add);
+		}
+		files.sort(Comparator.comparing(DescriptorCache::lastModified));
+		for (Path f : files) {
+			long size = Files.size(f);
+			entries.put(keyOf(f), size);
+			totalSize += size;
+		}
+		evictIfNeeded();
+	}
+
+	/**
+	 * Computes the key that should be used for the given molecule and descriptors
+	 * @param molecule the molecule
+	 * @param descriptors the descriptors used for computing the features
+	 * @return the key, or {@code null} if no canonical SMILES could be generated for the molecule
+	 */
+	public static String getKey(IAtomContainer molecule, List<ChemDescriptor> descriptors) {
+		try {
+			String smiles = new SmilesGenerator(SmiFlavor.Absolute).create(molecule);
+			StringBuilder sb = new StringBuilder(smiles);
+			for (ChemDescriptor d : descriptors)
+				sb.append('\n').append(d.toString());
+			return sha256(sb.toString());
+		} catch (CDKException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the cached features for a key
+	 * @param key the key, from {@link #getKey(IAtomContainer, List)}
+	 * @return the features, or {@code null} if not in the cache
+	 */
+	public FeatureVector get(String key) {
+		synchronized (this) {
+			// get (not containsKey) so that the entry becomes the most recently used
+			if (key == null || entries.get(key) == null) {
+				misses++;
+				return null;
+			}
+		}
+		Path file = pathOf(key);
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))){
+			int numFeatures = in.readInt();
+			List<SparseFeature> features = new ArrayList<>(numFeatures);
+			for (int i = 0; i < numFeatures; i++)
+				features.add(new SparseFeatureImpl(in.readInt(), in.readDouble()));
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+			synchronized (this) {
+				hits++;
+			}
+			return new SparseVector(features);
+		} catch (IOException e) {
+			// Removed by another process or corrupt - treat as a miss
+			synchronized (this) {
+				misses++;
+				Long size = entries.remove(key);
+				if (size != null)
+					totalSize -= size;
+			}
+			return null;
+		}
+	}
+
+	public void put(String key, FeatureVector features) throws IOException {
+		if (key == null)
+			return;
+		Path file = pathOf(key);
+		Files.createDirectories(file.getParent());
+		Path tmp = Files.createTempFile(file.getParent(), key, ".tmp");
+		try (OutputStream os = Files.newOutputStream(tmp);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os))){
+			List<Feature> list = new ArrayList<>();
+			for (Feature f : features)
+				list.add(f);
+			out.writeInt(list.size());
+			for (Feature f : list) {
+				out.writeInt(f.getIndex());
+				out.writeDouble(f.getValue());
+			}
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		long size = Files.size(file);
+		synchronized (this) {
+			Long old = entries.put(key, size);
+			totalSize += size - (old != null ? old : 0);
+			evictIfNeeded();
+		}
+	}
+
+	private synchronized void evictIfNeeded() throws IOException {
+		Iterator<Map.Entry<String,Long>> it = entries.entrySet().iterator();
+		while (totalSize > maxSizeBytes && it.hasNext()) {
+			Map.Entry<String,Long> eldest = it.next();
+			Files.deleteIfExists(pathOf(eldest.getKey()));
+			totalSize -= eldest.getValue();
+			it.remove();
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getSizeInBytes() {
+		return totalSize;
+	}
+
+	public synchronized long getNumHits() {
+		return hits;
+	}
+
+	public synchronized long getNumMisses() {
+		return misses;
+	}
+
+	public synchronized void clear() throws IOException {
+		for (String key : entries.keySet())
+			Files.deleteIfExists(pathOf(key));
+		entries.clear();
+		totalSize = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("DescriptorCache[dir=%s, entries=%d, bytes=%d, hits=%d, misses=%d]",
+				directory, entries.size(), totalSize, hits, misses);
+	}
+
+	private Path pathOf(String key) {
+		return directory.resolve(key.substring(0, 2)).resolve(key + FILE_SUFFIX);
+	}
+
+	private static String keyOf(Path file) {
+		String name = file.getFileName().toString();
+		return name.substring(0, name.length() - FILE_SUFFIX.length());
+	}
+
+	private static FileTime lastModified(Path file) {
+		try {
+			return Files.getLastModifiedTime(file);
+		} catch (IOException e) {
+			return FileTime.fromMillis(0);
+		}
+	}
+
+	private static String sha256(String text) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest)
+				sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// SHA-256 is required to be available in all JVMs
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -0,0 +1,545 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.arosbio.commons.config.ConfigParameter;
+import com.arosbio.data.DataRecord;
+import com.arosbio.data.Dataset.SubSet;
+import com.arosbio.data.FeatureVector;
+import com.arosbio.data.FeatureVector.Feature;
+import com.arosbio.data.SparseFeature;
+import com.arosbio.data.SparseFeatureImpl;
+import com.arosbio.data.SparseVector;
+import com.arosbio.data.transform.Transformer;
+
+/*
+ * Performs dropping of features with missing values (as the DropMissingDataSelector) and robust scaling
+ * (as the RobustScaler) as a single fused step, instead of applying the transformers one after another.
+ * The statistics needed by both steps (missing value counts and the column quantiles) are gathered in
+ * one pass, run in parallel over partitions of the records, and the transformed records are created in
+ * a single copy - without materializing an intermediate dataset. By default the quantiles are approximated
+ * using a streaming quantile sketch per feature (see QuantileSketch), so the memory used for fitting
+ * does not grow with the number of records. Exact quantiles can be used instead, which keeps all values
+ * of every feature in memory while fitting.
+ *
+ * It is a Transformer, so it should be applied using Dataset.apply(..) - which registers it in the dataset
+ * so that it is saved with the model and applied to new molecules when predicting. Feature indices are
+ * kept as they were, dropped features are simply left out of the records.
+ */
+public class FusedPreprocessor implements Transformer {
+
+	private static final long serialVersionUID = 1L;
+	public static final String NAME = "FusedPreprocessor";
+
+	public static class Builder {
+		private boolean dropMissing = false;
+		private boolean robustScaling = false;
+		private double lowerQuantile = 0.25, upperQuantile = 0.75;
+		private int sketchK = QuantileSketch.DEFAULT_K;
+		private int numThreads = Runtime.getRuntime().availableProcessors();
+
+		/**
+		 * Drop all features that have a missing value (NaN) in any record
+		 */
+		public Builder dropMissingFeatures() {
+			this.dropMissing = true;
+			return this;
+		}
+
+		/**
+		 * Scale features by removing the median and dividing by the range between the 25th and 75th percentile
+		 */
+		public Builder robustScaling() {
+			this.robustScaling = true;
+			return this;
+		}
+
+		/**
+		 * Scale features by removing the median and dividing by the range between the given quantiles
+		 */
+		public Builder robustScaling(double lowerQuantile, double upperQuantile) {
+			if (lowerQuantile < 0 || upperQuantile > 1 || lowerQuantile >= upperQuantile)
+				throw new IllegalArgumentException("Invalid quantile range: " + lowerQuantile + " - " + upperQuantile);
+			this.robustScaling = true;
+			this.lowerQuantile = lowerQuantile;
+			this.upperQuantile = upperQuantile;
+			return this;
+		}
+
+		/**
+		 * Set the accuracy of the quantile sketches used for computing the quantiles (the default), where
+		 * the memory use is independent of the number of records
+		 * @param rankError the (approximate) normalized rank error of the quantiles, e.g. 0.01 for 1%
+		 * @return the same builder
+		 */
+		public Builder approximateQuantiles(double rankError) {
+			if (rankError <= 0 || rankError >= 1)
+				throw new IllegalArgumentException("Rank error must be in (0,1), got: " + rankError);
+			this.sketchK = QuantileSketch.kForRankError(rankError);
+			return this;
+		}
+
+		/**
+		 * Compute exact quantiles, keeping all values of every feature in memory while fitting
+		 * @return the same builder
+		 */
+		public Builder exactQuantiles() {
+			this.sketchK = 0;
+			return this;
+		}
+
+		public Builder numThreads(int numThreads) {
+			this.numThreads = numThreads;
+			return this;
+		}
+
+		public FusedPreprocessor build() {
+			return new FusedPreprocessor(this);
+		}
+	}
+
+	private final boolean dropMissing;
+	private final boolean robustScaling;
+	private final double lowerQuantile, upperQuantile;
+	private final int sketchK;
+	private final int numThreads;
+
+	private boolean inPlace = false;
+
+	// Fitted state, of a size that depends on the number of features only
+	private int[] keptColumns;
+	private double[] center;
+	private double[] scale;
+	private int maxIndex = -1;
+	private int numDropped = 0;
+	private transient TransformInfo lastInfo;
+
+	private FusedPreprocessor(Builder b) {
+		if (b.numThreads < 1)
+			throw new IllegalArgumentException("Number of threads must be at least 1, got: " + b.numThreads);
+		this.dropMissing = b.dropMissing;
+		this.robustScaling = b.robustScaling;
+		this.lowerQuantile = b.lowerQuantile;
+		this.upperQuantile = b.upperQuantile;
+		this.sketchK = b.sketchK;
+		this.numThreads = b.numThreads;
+	}
+
+	private FusedPreprocessor(FusedPreprocessor other) {
+		this.dropMissing = other.dropMissing;
+		this.robustScaling = other.robustScaling;
+		this.lowerQuantile = other.lowerQuantile;
+		this.upperQuantile = other.upperQuantile;
+		this.sketchK = other.sketchK;
+		this.numThreads = other.numThreads;
+		this.inPlace = other.inPlace;
+		// The fitted state is never modified, so it can be shared
+		this.keptColumns = other.keptColumns;
+		this.center = other.center;
+		this.scale = other.scale;
+		this.maxIndex = other.maxIndex;
+		this.numDropped = other.numDropped;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public String[] getAliases() {
+		return new String[0];
+	}
+
+	@Override
+	public String getDescription() {
+		return "Drops features with missing values and performs robust scaling of the remaining features in a single fused step";
+	}
+
+	@Override
+	public List<ConfigParameter> getConfigParameters() {
+		// Configured using the Builder
+		return new ArrayList<>();
+	}
+
+	@Override
+	public void setConfigParameters(Map<String, Object> params) throws IllegalStateException, IllegalArgumentException {
+		if (params != null && !params.isEmpty())
+			throw new IllegalArgumentException("No config parameters available for " + NAME + ", use the Builder");
+	}
+
+	@Override
+	public boolean isTransformInPlace() {
+		return inPlace;
+	}
+
+	@Override
+	public FusedPreprocessor transformInPlace(boolean inPlace) {
+		this.inPlace = inPlace;
+		return this;
+	}
+
+	@Override
+	public boolean appliesToNewObjects() {
+		return true;
+	}
+
+	@Override
+	public boolean applicableToClassificationData() {
+		return true;
+	}
+
+	@Override
+	public boolean applicableToRegressionData() {
+		return true;
+	}
+
+	@Override
+	public TransformInfo getLastInfo() {
+		return lastInfo;
+	}
+
+	@Override
+	public FusedPreprocessor clone() {
+		return new FusedPreprocessor(this);
+	}
+
+	@Override
+	public boolean isFitted() {
+		return keptColumns != null;
+	}
+
+	/**
+	 * The number of features that are kept after the transformation
+	 */
+	public int getNumFeaturesOut() {
+		assertFitted();
+		return keptColumns.length;
+	}
+
+	/**
+	 * The indices of the features that are kept, in ascending order
+	 */
+	public int[] getKeptFeatures() {
+		assertFitted();
+		return keptColumns.clone();
+	}
+
+	private void assertFitted() {
+		if (!isFitted())
+			throw new IllegalStateException("Preprocessor not fitted");
+	}
+
+	/**
+	 * Gather the statistics of all columns in a single parallel pass over the records
+	 */
+	@Override
+	public FusedPreprocessor fit(Collection<DataRecord> data) {
+		List<DataRecord> records = data instanceof List ? (List<DataRecord>) data : new ArrayList<>(data);
+		// Values are only needed for computing quantiles
+		boolean keepValues = robustScaling;
+		ColumnStats stats = new ColumnStats(keepValues, sketchK);
+		for (ColumnStats partition : mapPartitions(records, (from, to) -> {
+			ColumnStats s = new ColumnStats(keepValues, sketchK);
+			for (int i = from; i < to; i++)
+				s.add(records.get(i).getFeatures());
+			return s;
+		}))
+			stats = ColumnStats.merge(stats, partition);
+
+		List<Integer> kept = new ArrayList<>();
+		int dropped = 0;
+		for (int col = 0; col <= stats.maxIndex; col++) {
+			if (!stats.isPresent(col))
+				continue;
+			if (dropMissing && stats.missingCount(col) > 0) {
+				dropped++;
+				continue;
+			}
+			kept.add(col);
+		}
+		int[] keptCols = new int[kept.size()];
+		double[] c = new double[kept.size()];
+		double[] sc = new double[kept.size()];
+		for (int i = 0; i < keptCols.length; i++) {
+			keptCols[i] = kept.get(i);
+			c[i] = 0;
+			sc[i] = 1;
+			if (robustScaling) {
+				double[] q = stats.quantiles(keptCols[i], records.size(), 0.5, lowerQuantile, upperQuantile);
+				c[i] = q[0];
+				double range = q[2] - q[1];
+				// Constant (or nearly constant) features are only centered
+				sc[i] = range > 0 && Double.isFinite(range) ? range : 1;
+			}
+		}
+		this.keptColumns = keptCols;
+		this.center = c;
+		this.scale = sc;
+		this.maxIndex = stats.maxIndex;
+		this.numDropped = dropped;
+		return this;
+	}
+
+	@Override
+	public SubSet fitAndTransform(SubSet data) {
+		fit(data);
+		return transform(data);
+	}
+
+	/**
+	 * Transform the records, in a single copy of each record
+	 */
+	@Override
+	public SubSet transform(SubSet data) {
+		assertFitted();
+		SubSet result = inPlace ? data : new SubSet();
+		int index = 0;
+		for (List<DataRecord> partition : mapPartitions(data, (from, to) -> {
+			double[] scratch = new double[maxIndex + 1];
+			List<DataRecord> out = new ArrayList<>(to - from);
+			for (int i = from; i < to; i++) {
+				DataRecord r = data.get(i);
+				out.add(new DataRecord(r.getLabel(), transform(r.getFeatures(), scratch)));
+			}
+			return out;
+		})) {
+			if (inPlace) {
+				for (DataRecord r : partition)
+					result.set(index++, r);
+			} else
+				result.addAll(partition);
+		}
+		lastInfo = new TransformInfo(0, data.size(), numDropped);
+		return result;
+	}
+
+	/**
+	 * Transform a single feature vector, e.g. of a new record that should be predicted
+	 */
+	@Override
+	public FeatureVector transform(FeatureVector features) {
+		assertFitted();
+		return transform(features, new double[maxIndex + 1]);
+	}
+
+	private FeatureVector transform(FeatureVector features, double[] scratch) {
+		for (Feature f : features) {
+			if (f.getIndex() <= maxIndex)
+				scratch[f.getIndex()] = f.getValue();
+		}
+		List<SparseFeature> out = new ArrayList<>();
+		for (int i = 0; i < keptColumns.length; i++) {
+			int col = keptColumns[i];
+			double v = (scratch[col] - center[i]) / scale[i];
+			scratch[col] = 0;
+			if (v != 0)
+				out.add(new SparseFeatureImpl(col, v));
+		}
+		// Clear any features that were not kept
+		for (Feature f : features) {
+			if (f.getIndex() <= maxIndex)
+				scratch[f.getIndex()] = 0;
+		}
+		return new SparseVector(out);
+	}
+
+	private interface PartitionTask<T> {
+		T run(int from, int to);
+	}
+
+	/**
+	 * Run the task on contiguous partitions of the records
+	 * @return the results of each partition, in the same order as the records
+	 */
+	private <T> List<T> mapPartitions(List<DataRecord> records, PartitionTask<T> task) {
+		int numPartitions = Math.max(1, Math.min(numThreads * 4, records.size() / 64));
+		if (numThreads == 1 || numPartitions == 1)
+			return Arrays.asList(task.run(0, records.size()));
+		int partitionSize = (records.size() + numPartitions - 1) / numPartitions;
+
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<T>> futures = new ArrayList<>(numPartitions);
+			for (int from = 0; from < records.size(); from += partitionSize) {
+				final int start = from, end = Math.min(records.size(), from + partitionSize);
+				futures.add(pool.submit(() -> task.run(start, end)));
+			}
+			List<T> results = new ArrayList<>(futures.size());
+			for (Future<T> f : futures)
+				results.add(f.get());
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while preprocessing", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("Failed preprocessing: " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Statistics of all columns over a partition of the records. Only explicitly given values are stored,
+	 * values of features not given in a record are implicit zeros. The values are either kept exactly or
+	 * summarized in a quantile sketch per column
+	 */
+	static class ColumnStats {
+		private final boolean keepValues;
+		private final int sketchK;
+		private int maxIndex = -1;
+		private int[] missing = new int[0];
+		private int[] numValues = new int[0];
+		private DoubleList[] values = new DoubleList[0];
+		private QuantileSketch[] sketches = new QuantileSketch[0];
+
+		/**
+		 * @param keepValues if the values are needed for computing quantiles
+		 * @param sketchK the k parameter of the quantile sketches, or 0 to keep exact values
+		 */
+		ColumnStats(boolean keepValues, int sketchK) {
+			this.keepValues = keepValues;
+			this.sketchK = sketchK;
+		}
+
+		void add(FeatureVector features) {
+			for (Feature f : features) {
+				int col = f.getIndex();
+				ensureCapacity(col);
+				if (Double.isNaN(f.getValue()))
+					missing[col]++;
+				else {
+					numValues[col]++;
+					if (keepValues)
+						addValue(col, f.getValue());
+				}
+				if (col > maxIndex)
+					maxIndex = col;
+			}
+		}
+
+		private void addValue(int col, double v) {
+			if (sketchK > 0) {
+				if (sketches[col] == null)
+					sketches[col] = new QuantileSketch(sketchK);
+				sketches[col].update(v);
+			} else {
+				if (values[col] == null)
+					values[col] = new DoubleList();
+				values[col].add(v);
+			}
+		}
+
+		private void ensureCapacity(int col) {
+			if (col < missing.length)
+				return;
+			int newSize = Math.max(col + 1, missing.length * 2);
+			missing = Arrays.copyOf(missing, newSize);
+			numValues = Arrays.copyOf(numValues, newSize);
+			values = Arrays.copyOf(values, newSize);
+			sketches = Arrays.copyOf(sketches, newSize);
+		}
+
+		static ColumnStats merge(ColumnStats a, ColumnStats b) {
+			a.ensureCapacity(b.maxIndex);
+			for (int col = 0; col <= b.maxIndex; col++) {
+				a.missing[col] += b.missing[col];
+				a.numValues[col] += b.numValues[col];
+				if (b.values[col] != null) {
+					if (a.values[col] == null)
+						a.values[col] = new DoubleList();
+					a.values[col].addAll(b.values[col]);
+				}
+				if (b.sketches[col] != null) {
+					if (a.sketches[col] == null)
+						a.sketches[col] = new QuantileSketch(a.sketchK);
+					a.sketches[col].merge(b.sketches[col]);
+				}
+			}
+			a.maxIndex = Math.max(a.maxIndex, b.maxIndex);
+			return a;
+		}
+
+		boolean isPresent(int col) {
+			return col < missing.length && (missing[col] > 0 || numValues[col] > 0);
+		}
+
+		int missingCount(int col) {
+			return missing[col];
+		}
+
+		/**
+		 * The quantiles of a column, over the non-missing values including the implicit zeros of the records
+		 * where the feature is not given. Exact quantiles use linear interpolation between the closest ranks
+		 */
+		double[] quantiles(int col, int numRecords, double... qs) {
+			int numZeros = numRecords - missing[col] - numValues[col];
+			if (sketchK > 0) {
+				QuantileSketch sketch = sketches[col] != null ? sketches[col] : new QuantileSketch(sketchK);
+				return sketch.getQuantiles(qs, 0, numZeros);
+			}
+			double[] explicit = values[col] != null ? values[col].toSortedArray() : new double[0];
+			int n = explicit.length + numZeros;
+			double[] result = new double[qs.length];
+			if (n == 0)
+				return result;
+			// The first index of the explicit values that is >= 0, where the implicit zeros are inserted
+			int zeroPos = 0;
+			while (zeroPos < explicit.length && explicit[zeroPos] < 0)
+				zeroPos++;
+			for (int i = 0; i < qs.length; i++) {
+				double rank = qs[i] * (n - 1);
+				int lo = (int) Math.floor(rank);
+				int hi = Math.min(n - 1, lo + 1);
+				double loVal = valueAt(explicit, zeroPos, numZeros, lo);
+				double hiVal = valueAt(explicit, zeroPos, numZeros, hi);
+				result[i] = loVal + (rank - lo) * (hiVal - loVal);
+			}
+			return result;
+		}
+
+		private static double valueAt(double[] explicit, int zeroPos, int numZeros, int rank) {
+			if (rank < zeroPos)
+				return explicit[rank];
+			if (rank < zeroPos + numZeros)
+				return 0;
+			return explicit[rank - numZeros];
+		}
+	}
+
+	/** A growable array of primitive doubles */
+	static class DoubleList {
+		private double[] data = new double[8];
+		private int size = 0;
+
+		void add(double v) {
+			if (size == data.length)
+				data = Arrays.copyOf(data, size * 2);
+			data[size++] = v;
+		}
+
+		void addAll(DoubleList other) {
+			if (size + other.size > data.length)
+				data = Arrays.copyOf(data, Math.max(size + other.size, data.length * 2));
+			System.arraycopy(other.data, 0, data, size, other.size);
+			size += other.size;
+		}
+
+		double[] toSortedArray() {
+			double[] arr = Arrays.copyOf(data, size);
+			Arrays.sort(arr);
+			return arr;
+		}
+	}
+
+}
@@ -0,0 +1,383 @@
+package utils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/*
+ * Loads data in LIBSVM format on several threads. The (decompressed) input is split into chunks
+ * that end at a line break, each chunk is parsed on its own into primitive arrays and the parts are
+ * concatenated in input order into a CSRMatrix. Uncompressed files can be given as a Path, in which
+ * case the file is memory mapped instead of copied through an InputStream.
+ *
+ * Feature indices are kept exactly as written in the file and comment lines (starting with '#')
+ * and empty lines are skipped. Encrypted data must still be loaded using Dataset.fromLIBSVMFormat.
+ */
+public class LIBSVMLoader {
+
+	public static final int DEFAULT_CHUNK_SIZE_BYTES = 4 * 1024 * 1024;
+
+	private final int numThreads;
+	private final int chunkSize;
+
+	public LIBSVMLoader() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE_BYTES);
+	}
+
+	public LIBSVMLoader(int numThreads, int chunkSizeBytes) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("Number of threads must be at least 1, got: " + numThreads);
+		if (chunkSizeBytes < 1)
+			throw new IllegalArgumentException("Chunk size must be at least 1 byte, got: " + chunkSizeBytes);
+		this.numThreads = numThreads;
+		this.chunkSize = chunkSizeBytes;
+	}
+
+	/**
+	 * Load data from a stream, which can be either gzipped or plain text
+	 * @param stream the input, will not be closed by this method
+	 * @return the loaded records
+	 * @throws IOException if failing to read or parse the input
+	 */
+	public CSRMatrix load(InputStream stream) throws IOException {
+		InputStream in = unzipIfNeeded(stream);
+
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<CSRMatrix> parts = new ArrayList<>();
+		Deque<Future<CSRMatrix>> inFlight = new ArrayDeque<>();
+		try {
+			byte[] buffer = new byte[chunkSize];
+			int filled = 0;
+			long lineOffset = 0;
+			while (true) {
+				if (filled == buffer.length) // Single line longer than the buffer
+					buffer = Arrays.copyOf(buffer, buffer.length * 2);
+				int read = in.read(buffer, filled, buffer.length - filled);
+				if (read < 0)
+					break;
+				filled += read;
+				if (filled < buffer.length)
+					continue;
+
+				int end = lastLineBreak(buffer, filled);
+				if (end < 0)
+					continue;
+				byte[] chunk = Arrays.copyOf(buffer, end + 1);
+				long firstLine = lineOffset;
+				inFlight.add(pool.submit(() -> parse(ByteBuffer.wrap(chunk), firstLine)));
+				lineOffset += countLines(chunk);
+
+				// Move the remaining (partial) line to the start of the buffer
+				filled -= end + 1;
+				System.arraycopy(buffer, end + 1, buffer, 0, filled);
+
+				if (inFlight.size() >= 2 * numThreads)
+					parts.add(getResult(inFlight.poll()));
+			}
+			if (filled > 0) {
+				byte[] chunk = Arrays.copyOf(buffer, filled);
+				long firstLine = lineOffset;
+				inFlight.add(pool.submit(() -> parse(ByteBuffer.wrap(chunk), firstLine)));
+			}
+			while (!inFlight.isEmpty())
+				parts.add(getResult(inFlight.poll()));
+		} finally {
+			pool.shutdownNow();
+		}
+		return CSRMatrix.concat(parts);
+	}
+
+	/**
+	 * Load data from a file. Plain text files are memory mapped, gzipped files are read as a stream
+	 * @param file the file to load
+	 * @return the loaded records
+	 * @throws IOException if failing to read or parse the file
+	 */
+	public CSRMatrix load(Path file) throws IOException {
+		if (isGzipped(file)) {
+			try (InputStream in = Files.newInputStream(file)){
+				return load(in);
+			}
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		List<Future<CSRMatrix>> futures = new ArrayList<>();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+			long size = channel.size();
+			long position = 0;
+			while (position < size) {
+				long length = Math.min(chunkSize, size - position);
+				ByteBuffer chunk = channel.map(MapMode.READ_ONLY, position, length);
+				// Extend the region until it ends with a complete line (or the end of the file)
+				while (position + length < size && lastLineBreak(chunk, (int) length) < 0) {
+					length = Math.min(Math.min(2 * length, Integer.MAX_VALUE), size - position);
+					chunk = channel.map(MapMode.READ_ONLY, position, length);
+				}
+				if (position + length < size)
+					length = lastLineBreak(chunk, (int) length) + 1;
+				ByteBuffer region = chunk.duplicate();
+				region.limit((int) length);
+				futures.add(pool.submit(() -> parse(region, -1)));
+				position += length;
+			}
+
+			List<CSRMatrix> parts = new ArrayList<>(futures.size());
+			for (Future<CSRMatrix> f : futures)
+				parts.add(getResult(f));
+			return CSRMatrix.concat(parts);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Parse the lines in the given buffer, from its position to its limit
+	 * @param buffer the buffer
+	 * @param firstLine the line number (zero-based) of the first line, used for error messages, or -1 if not known
+	 * @return the parsed records
+	 * @throws IllegalArgumentException if the input is not in valid LIBSVM format
+	 */
+	static CSRMatrix parse(ByteBuffer buffer, long firstLine) throws IllegalArgumentException {
+		DoubleList labels = new DoubleList(1024);
+		IntList rowOffsets = new IntList(1025);
+		IntList indices = new IntList(16 * 1024);
+		DoubleList values = new DoubleList(16 * 1024);
+		rowOffsets.add(0);
+
+		final int end = buffer.limit();
+		int pos = buffer.position();
+		long line = firstLine;
+		while (pos < end) {
+			int lineEnd = pos;
+			while (lineEnd < end && buffer.get(lineEnd) != '\n')
+				lineEnd++;
+			int lineStart = skipWhitespace(buffer, pos, lineEnd);
+			if (lineStart < lineEnd && buffer.get(lineStart) != '#') {
+				try {
+					parseLine(buffer, lineStart, lineEnd, labels, indices, values);
+				} catch (RuntimeException e) {
+					throw new IllegalArgumentException("Invalid LIBSVM record"
+							+ (line >= 0 ? " on line " + (line + 1) : "") + ": " + e.getMessage());
+				}
+				rowOffsets.add(indices.size());
+			}
+			pos = lineEnd + 1;
+			if (line >= 0)
+				line++;
+		}
+		return new CSRMatrix(labels.toArray(), rowOffsets.toArray(), indices.toArray(), values.toArray());
+	}
+
+	private static void parseLine(ByteBuffer buffer, int start, int end, DoubleList labels, IntList indices, DoubleList values) {
+		int tokenEnd = nextWhitespace(buffer, start, end);
+		labels.add(parseDouble(buffer, start, tokenEnd));
+
+		int pos = skipWhitespace(buffer, tokenEnd, end);
+		while (pos < end) {
+			tokenEnd = nextWhitespace(buffer, pos, end);
+			int colon = pos;
+			while (colon < tokenEnd && buffer.get(colon) != ':')
+				colon++;
+			if (colon == tokenEnd)
+				throw new IllegalArgumentException("expected <index>:<value> but got: " + toString(buffer, pos, tokenEnd));
+			indices.add(parseInt(buffer, pos, colon));
+			values.add(parseDouble(buffer, colon + 1, tokenEnd));
+			pos = skipWhitespace(buffer, tokenEnd, end);
+		}
+	}
+
+	private static int parseInt(ByteBuffer buffer, int start, int end) {
+		if (start == end)
+			throw new IllegalArgumentException("missing feature index");
+		int value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = buffer.get(i) - '0';
+			if (digit < 0 || digit > 9)
+				throw new IllegalArgumentException("invalid feature index: " + toString(buffer, start, end));
+			value = Math.addExact(Math.multiplyExact(value, 10), digit);
+		}
+		return value;
+	}
+
+	// Exact powers of ten that can be represented as doubles
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+	}
+
+	private static double parseDouble(ByteBuffer buffer, int start, int end) {
+		// Fast path for plain decimal numbers, which covers almost all LIBSVM files. When both the
+		// digits and the power of ten are exactly representable, the division is correctly rounded
+		// and gives the same result as Double.parseDouble
+		int i = start;
+		boolean negative = false;
+		if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+			negative = buffer.get(i) == '-';
+			i++;
+		}
+		long digits = 0;
+		int numDigits = 0, numDecimals = 0;
+		boolean seenDot = false, seenDigit = false;
+		for (; i < end; i++) {
+			byte b = buffer.get(i);
+			if (b >= '0' && b <= '9') {
+				seenDigit = true;
+				digits = digits * 10 + (b - '0');
+				if (digits != 0)
+					numDigits++;
+				if (seenDot)
+					numDecimals++;
+			} else if (b == '.' && !seenDot) {
+				seenDot = true;
+			} else {
+				break;
+			}
+		}
+		if (i == end && seenDigit && numDigits <= 15 && numDecimals < POWERS_OF_TEN.length) {
+			double value = digits / POWERS_OF_TEN[numDecimals];
+			return negative ? -value : value;
+		}
+		// Exponents, NaN, very long numbers etc
+		return Double.parseDouble(toString(buffer, start, end));
+	}
+
+	private static String toString(ByteBuffer buffer, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buffer.get(start + i);
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+
+	private static int skipWhitespace(ByteBuffer buffer, int pos, int end) {
+		while (pos < end && isWhitespace(buffer.get(pos)))
+			pos++;
+		return pos;
+	}
+
+	private static int nextWhitespace(ByteBuffer buffer, int pos, int end) {
+		while (pos < end && !isWhitespace(buffer.get(pos)))
+			pos++;
+		return pos;
+	}
+
+	private static int lastLineBreak(byte[] buffer, int length) {
+		for (int i = length - 1; i >= 0; i--) {
+			if (buffer[i] == '\n')
+				return i;
+		}
+		return -1;
+	}
+
+	private static int lastLineBreak(ByteBuffer buffer, int length) {
+		for (int i = length - 1; i >= 0; i--) {
+			if (buffer.get(i) == '\n')
+				return i;
+		}
+		return -1;
+	}
+
+	private static int countLines(byte[] chunk) {
+		int count = 0;
+		for (byte b : chunk) {
+			if (b == '\n')
+				count++;
+		}
+		return count;
+	}
+
+	private static InputStream unzipIfNeeded(InputStream stream) throws IOException {
+		InputStream in = stream.markSupported() ? stream : new BufferedInputStream(stream);
+		in.mark(2);
+		int b1 = in.read(), b2 = in.read();
+		in.reset();
+		if (b1 == (GZIPInputStream.GZIP_MAGIC & 0xff) && b2 == (GZIPInputStream.GZIP_MAGIC >> 8))
+			return new GZIPInputStream(in, 64 * 1024);
+		return in;
+	}
+
+	private static boolean isGzipped(Path file) throws IOException {
+		try (InputStream in = Files.newInputStream(file)){
+			int b1 = in.read(), b2 = in.read();
+			return b1 == (GZIPInputStream.GZIP_MAGIC & 0xff) && b2 == (GZIPInputStream.GZIP_MAGIC >> 8);
+		}
+	}
+
+	private static CSRMatrix getResult(Future<CSRMatrix> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading data", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IOException("Failed loading data: " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	private static class IntList {
+		private int[] data;
+		private int size = 0;
+
+		IntList(int capacity) {
+			data = new int[capacity];
+		}
+
+		void add(int value) {
+			if (size == data.length)
+				data = Arrays.copyOf(data, data.length * 2);
+			data[size++] = value;
+		}
+
+		int size() {
+			return size;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(data, size);
+		}
+	}
+
+	private static class DoubleList {
+		private double[] data;
+		private int size = 0;
+
+		DoubleList(int capacity) {
+			data = new double[capacity];
+		}
+
+		void add(double value) {
+			if (size == data.length)
+				data = Arrays.copyOf(data, data.length * 2);
+			data[size++] = value;
+		}
+
+		double[] toArray() {
+			return Arrays.copyOf(data, size);
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+package utils;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Holds a model that is loaded once, the first time it is needed - or in the background using preload(),
+ * so that loading a large model (e.g. an ACP with many aggregated models on signatures descriptors) overlaps
+ * with other start up work such as parsing the input, instead of delaying it. All callers share the same
+ * loaded model, and callers asking for it while it is being loaded wait for that load to finish.
+ *
+ * Loading failures are remembered and rethrown to every caller, the model is never loaded twice.
+ */
+public class LazyModel<T> {
+
+	/**
+	 * Loads the model, e.g. {@code () -> ModelSerializer.loadChemPredictor(uri, null)}
+	 */
+	public interface Loader<T> {
+		T load() throws Exception;
+	}
+
+	private final FutureTask<T> task;
+	private final AtomicBoolean preloadStarted = new AtomicBoolean(false);
+	private volatile long loadTimeMillis = -1;
+
+	public LazyModel(Loader<T> loader) {
+		this.task = new FutureTask<>(() -> {
+			long start = System.currentTimeMillis();
+			T model = loader.load();
+			loadTimeMillis = System.currentTimeMillis() - start;
+			return model;
+		});
+	}
+
+	/**
+	 * Start loading the model on a background (daemon) thread, if not already started or loaded. Repeated calls do not start more threads
+	 * @return the same instance
+	 */
+	public LazyModel<T> preload() {
+		if (!preloadStarted.compareAndSet(false, true) || task.isDone())
+			return this;
+		Thread t = new Thread(task, "model-loader");
+		t.setDaemon(true);
+		t.start();
+		return this;
+	}
+
+	/**
+	 * Get the model, loading it in the calling thread if it has not been started yet
+	 * @return the loaded model
+	 * @throws IllegalStateException if loading the model failed
+	 */
+	public T get() {
+		// Does nothing if the model is already loaded, or being loaded by another thread
+		task.run();
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while loading model", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("Failed loading model: " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	public boolean isLoaded() {
+		return task.isDone();
+	}
+
+	/**
+	 * The time it took to load the model in milliseconds, or -1 if not loaded (successfully) yet
+	 */
+	public long getLoadTimeMillis() {
+		return loadTimeMillis;
+	}
+
+	@Override
+	public String toString() {
+		if (!isLoaded())
+			return "LazyModel[not loaded]";
+		return loadTimeMillis >= 0 ? String.format("LazyModel[loaded in %d ms]", loadTimeMillis) : "LazyModel[failed loading]";
+	}
+
+}
@@ -0,0 +1,224 @@
+package utils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.arosbio.data.DataRecord;
+import com.arosbio.data.Dataset.SubSet;
+import com.arosbio.data.FeatureVector.Feature;
+import com.arosbio.data.SparseFeature;
+import com.arosbio.data.SparseFeatureImpl;
+import com.arosbio.data.SparseVector;
+
+/*
+ * A binary file format for numerical records, that can be memory mapped instead of deserialized.
+ * The file holds the columns of a CSRMatrix (labels, values, row offsets and feature indices) as
+ * plain arrays after a small header, so opening a file only requires reading the header - regardless
+ * of the size of the data - and the operating system can share the pages between several processes
+ * that use the same file. Records are only turned into CPSign objects when accessed.
+ *
+ * Layout (little endian): magic, version, #rows, #non-zeros, then the labels (double), values (double),
+ * row offsets (int) and indices (int) arrays. Each array must be smaller than 2GB.
+ */
+public class MappedCSRFile implements AutoCloseable {
+
+	private static final int MAGIC = 0x44525343; // "CSRD"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+
+	private final FileChannel channel;
+	private final int numRows;
+	private final int numNonZeros;
+	private final DoubleBuffer labels;
+	private final DoubleBuffer values;
+	private final IntBuffer rowOffsets;
+	private final IntBuffer indices;
+
+	private MappedCSRFile(FileChannel channel) throws IOException {
+		this.channel = channel;
+		long fileSize = channel.size();
+		if (fileSize < HEADER_BYTES)
+			throw new IOException("Not a CSR data file, file is too small for the header");
+		ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		if (header.getInt(0) != MAGIC)
+			throw new IOException("Not a CSR data file");
+		if (header.getInt(4) != VERSION)
+			throw new IOException("Unsupported CSR file version: " + header.getInt(4));
+		numRows = header.getInt(8);
+		numNonZeros = header.getInt(12);
+		if (numRows < 0 || numNonZeros < 0)
+			throw new IOException(String.format("Corrupt CSR file, invalid header (rows=%d, non-zeros=%d)", numRows, numNonZeros));
+		long expectedSize = HEADER_BYTES + 8L * numRows + 8L * numNonZeros + 4L * (numRows + 1) + 4L * numNonZeros;
+		if (fileSize != expectedSize)
+			throw new IOException(String.format("Truncated or corrupt CSR file, expected %d bytes for %d rows and %d non-zeros but file has %d bytes",
+					expectedSize, numRows, numNonZeros, fileSize));
+
+		long pos = HEADER_BYTES;
+		labels = map(pos, 8L * numRows).asDoubleBuffer();
+		pos += 8L * numRows;
+		values = map(pos, 8L * numNonZeros).asDoubleBuffer();
+		pos += 8L * numNonZeros;
+		rowOffsets = map(pos, 4L * (numRows + 1)).asIntBuffer();
+		pos += 4L * (numRows + 1);
+		indices = map(pos, 4L * numNonZeros).asIntBuffer();
+		// Only the ends are checked, checking all offsets would require reading the whole array
+		if (rowOffsets.get(0) != 0 || rowOffsets.get(numRows) != numNonZeros)
+			throw new IOException("Corrupt CSR file, row offsets do not match the number of non-zeros");
+	}
+
+	private ByteBuffer map(long position, long size) throws IOException {
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Data too large to be memory mapped");
+		return channel.map(MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Open a file, mapping it into memory
+	 * @param file a file written by one of the {@code write} methods
+	 * @return the opened file, should be closed once done
+	 * @throws IOException if the file could not be opened or is not in the correct format
+	 */
+	public static MappedCSRFile open(Path file) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			return new MappedCSRFile(channel);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public static void write(CSRMatrix matrix, Path file) throws IOException {
+		try (OutputStream os = Files.newOutputStream(file);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1024 * 1024))){
+			writeIntLE(out, MAGIC);
+			writeIntLE(out, VERSION);
+			writeIntLE(out, matrix.getNumRows());
+			writeIntLE(out, matrix.getNumNonZeros());
+			for (double v : matrix.getLabels())
+				writeLongLE(out, Double.doubleToRawLongBits(v));
+			for (double v : matrix.getValues())
+				writeLongLE(out, Double.doubleToRawLongBits(v));
+			for (int v : matrix.getRowOffsets())
+				writeIntLE(out, v);
+			for (int v : matrix.getIndices())
+				writeIntLE(out, v);
+		}
+	}
+
+	public static void write(List<DataRecord> records, Path file) throws IOException {
+		write(toCSRMatrix(records), file);
+	}
+
+	static CSRMatrix toCSRMatrix(List<DataRecord> records) {
+		double[] labels = new double[records.size()];
+		int[] rowOffsets = new int[records.size() + 1];
+		int numNonZeros = 0;
+		for (int row = 0; row < records.size(); row++) {
+			labels[row] = records.get(row).getLabel();
+			for (@SuppressWarnings("unused") Feature f : records.get(row).getFeatures())
+				numNonZeros++;
+			rowOffsets[row + 1] = numNonZeros;
+		}
+		int[] indices = new int[numNonZeros];
+		double[] values = new double[numNonZeros];
+		int pos = 0;
+		for (DataRecord r : records) {
+			for (Feature f : r.getFeatures()) {
+				indices[pos] = f.getIndex();
+				values[pos] = f.getValue();
+				pos++;
+			}
+		}
+		return new CSRMatrix(labels, rowOffsets, indices, values);
+	}
+
+	private static void writeIntLE(DataOutputStream out, int v) throws IOException {
+		out.writeInt(Integer.reverseBytes(v));
+	}
+
+	private static void writeLongLE(DataOutputStream out, long v) throws IOException {
+		out.writeLong(Long.reverseBytes(v));
+	}
+
+	public int getNumRows() {
+		return numRows;
+	}
+
+	public int getNumNonZeros() {
+		return numNonZeros;
+	}
+
+	public double getLabel(int row) {
+		return labels.get(row);
+	}
+
+	public int getRowStart(int row) {
+		return rowOffsets.get(row);
+	}
+
+	public int getRowEnd(int row) {
+		return rowOffsets.get(row + 1);
+	}
+
+	public int getIndex(int position) {
+		return indices.get(position);
+	}
+
+	public double getValue(int position) {
+		return values.get(position);
+	}
+
+	public DataRecord getRecord(int row) {
+		List<SparseFeature> features = new ArrayList<>(getRowEnd(row) - getRowStart(row));
+		for (int k = getRowStart(row); k < getRowEnd(row); k++)
+			features.add(new SparseFeatureImpl(indices.get(k), values.get(k)));
+		return new DataRecord(labels.get(row), new SparseVector(features));
+	}
+
+	public SubSet toSubSet() {
+		SubSet records = new SubSet();
+		for (int row = 0; row < numRows; row++)
+			records.add(getRecord(row));
+		return records;
+	}
+
+	/**
+	 * Copy the data into heap memory
+	 */
+	public CSRMatrix toCSRMatrix() {
+		double[] l = new double[numRows];
+		double[] v = new double[numNonZeros];
+		int[] o = new int[numRows + 1];
+		int[] i = new int[numNonZeros];
+		labels.duplicate().get(l);
+		values.duplicate().get(v);
+		rowOffsets.duplicate().get(o);
+		indices.duplicate().get(i);
+		return new CSRMatrix(l, o, i, v);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("MappedCSRFile[rows=%d, non-zeros=%d]", numRows, numNonZeros);
+	}
+
+}
@@ -0,0 +1,199 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.arosbio.data.DataRecord;
+import com.arosbio.data.Dataset;
+import com.arosbio.data.Dataset.SubSet;
+import com.arosbio.data.FeatureVector;
+import com.arosbio.ml.cp.CPRegressionPrediction;
+import com.arosbio.ml.cp.acp.ACPClassifier;
+import com.arosbio.ml.cp.acp.ACPRegressor;
+import com.arosbio.ml.cp.icp.ICPClassifier;
+import com.arosbio.ml.cp.nonconf.calc.PValueCalculator;
+import com.arosbio.ml.cp.nonconf.classification.NCMMondrianClassification;
+import com.arosbio.ml.cp.nonconf.regression.NCMRegression;
+import com.arosbio.ml.sampling.RandomSampling;
+
+import utils.DataSplits.Split;
+
+/*
+ * Trains the ICPs of an aggregated conformal predictor (ACP or CCP) concurrently, instead of one
+ * after another. The splits into proper training and calibration sets are computed up front from
+ * a seed (see DataSplits), so the trained members are identical regardless of the number of threads
+ * and the order in which they finish. Each member is a single-ICP predictor trained on exclusive
+ * proper training and calibration sets, with its own clone of the NCM.
+ *
+ * The aggregated prediction takes the median of the p-values (classification) or of the interval
+ * end points and midpoints (regression) of the members.
+ */
+public class ParallelACPTrainer {
+
+	private final int numThreads;
+
+	public ParallelACPTrainer() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public ParallelACPTrainer(int numThreads) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("Number of threads must be at least 1, got: " + numThreads);
+		this.numThreads = numThreads;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public AggregatedClassifier trainClassifier(NCMMondrianClassification ncm, Dataset data, List<Split> splits) {
+		return trainClassifier(ncm, null, data, splits);
+	}
+
+	/**
+	 * Train a classifier using the given p-value calculator in all members
+	 * @param ncm the nonconformity measure, cloned for each member
+	 * @param pValueCalculator the p-value calculator cloned for each member, or {@code null} for the default of CPSign
+	 * @param data the data
+	 * @param splits the splits into proper training (training indices) and calibration (held out indices) sets of each member
+	 * @return the trained classifier
+	 */
+	public AggregatedClassifier trainClassifier(NCMMondrianClassification ncm, PValueCalculator pValueCalculator, Dataset data, List<Split> splits) {
+		List<Callable<ACPClassifier>> tasks = new ArrayList<>(splits.size());
+		for (Split s : splits) {
+			tasks.add(() -> {
+				ACPClassifier icp = pValueCalculator != null ? 
+						new ACPClassifier(new ICPClassifier(ncm.clone(), pValueCalculator.clone()), singleICP(s)) :
+						new ACPClassifier(ncm.clone(), singleICP(s));
+				icp.train(toICPDataset(data, s));
+				return icp;
+			});
+		}
+		return new AggregatedClassifier(runAll(tasks));
+	}
+
+	public AggregatedRegressor trainRegressor(NCMRegression ncm, Dataset data, List<Split> splits) {
+		List<Callable<ACPRegressor>> tasks = new ArrayList<>(splits.size());
+		for (Split s : splits) {
+			tasks.add(() -> {
+				ACPRegressor icp = new ACPRegressor(ncm.clone(), singleICP(s));
+				icp.train(toICPDataset(data, s));
+				return icp;
+			});
+		}
+		return new AggregatedRegressor(runAll(tasks));
+	}
+
+	private static RandomSampling singleICP(Split s) {
+		// All records are exclusive to either proper training or calibration, the ratio has no effect
+		int total = s.getTrainingIndices().length + s.getHeldOutIndices().length;
+		return new RandomSampling(1, ((double) s.getHeldOutIndices().length) / total);
+	}
+
+	private static Dataset toICPDataset(Dataset data, Split split) {
+		SubSet properTraining = DataSplits.select(data.getDataset(), split.getTrainingIndices());
+		SubSet calibration = DataSplits.select(data.getDataset(), split.getHeldOutIndices());
+		// Keep records that were already earmarked for either of the sets
+		if (data.getModelingExclusiveDataset() != null)
+			properTraining.addAll(data.getModelingExclusiveDataset());
+		if (data.getCalibrationExclusiveDataset() != null)
+			calibration.addAll(data.getCalibrationExclusiveDataset());
+		return new Dataset()
+				.withModelingExclusiveDataset(properTraining)
+				.withCalibrationExclusiveDataset(calibration);
+	}
+
+	private <T> List<T> runAll(List<Callable<T>> tasks) {
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			List<T> results = new ArrayList<>(tasks.size());
+			for (Future<T> f : pool.invokeAll(tasks))
+				results.add(f.get());
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while training", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("Failed training: " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public static class AggregatedClassifier {
+		private final List<ACPClassifier> members;
+
+		private AggregatedClassifier(List<ACPClassifier> members) {
+			this.members = members;
+		}
+
+		public List<ACPClassifier> getMembers() {
+			return members;
+		}
+
+		/**
+		 * Predict the p-values for each label, as the median of the p-values of all members
+		 */
+		public Map<Integer,Double> predict(FeatureVector features) {
+			Map<Integer,double[]> pvals = new HashMap<>();
+			for (int i = 0; i < members.size(); i++) {
+				for (Map.Entry<Integer,Double> kv : members.get(i).predict(features).entrySet())
+					pvals.computeIfAbsent(kv.getKey(), k -> new double[members.size()])[i] = kv.getValue();
+			}
+			Map<Integer,Double> result = new HashMap<>();
+			for (Map.Entry<Integer,double[]> kv : pvals.entrySet())
+				result.put(kv.getKey(), median(kv.getValue()));
+			return result;
+		}
+
+		public Map<Integer,Double> predict(DataRecord record) {
+			return predict(record.getFeatures());
+		}
+	}
+
+	public static class AggregatedRegressor {
+		private final List<ACPRegressor> members;
+
+		private AggregatedRegressor(List<ACPRegressor> members) {
+			this.members = members;
+		}
+
+		public List<ACPRegressor> getMembers() {
+			return members;
+		}
+
+		/**
+		 * Predict the median midpoint and prediction interval of all members
+		 * @return an array of {@code [lower, midpoint, upper]}
+		 */
+		public double[] predict(FeatureVector features, double confidence) {
+			double[] lower = new double[members.size()];
+			double[] mid = new double[members.size()];
+			double[] upper = new double[members.size()];
+			for (int i = 0; i < members.size(); i++) {
+				CPRegressionPrediction p = members.get(i).predict(features, confidence);
+				mid[i] = p.getY_hat();
+				lower[i] = p.getInterval(confidence).getInterval().lowerEndpoint();
+				upper[i] = p.getInterval(confidence).getInterval().upperEndpoint();
+			}
+			return new double[] {median(lower), median(mid), median(upper)};
+		}
+	}
+
+	static double median(double[] values) {
+		double[] sorted = values.clone();
+		Arrays.sort(sorted);
+		int n = sorted.length;
+		return n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+	}
+
+}
@@ -0,0 +1,249 @@
+package utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.smiles.SmilesParser;
+
+import com.arosbio.chem.io.in.FailedRecord;
+import com.arosbio.chem.io.in.FailedRecord.Cause;
+
+/*
+ * Reads molecules from CSV data, similar to the CSVChemFileReader, but using a pipeline of threads:
+ * one thread reads and tokenizes the CSV rows and a pool of threads parse the SMILES. The molecules are
+ * configured in the same way as by the CSVChemFileReader (i.e. only parsed, atom typing and aromaticity
+ * are left to the descriptors) and are returned in the same order as in the file.
+ * The number of rows that are read ahead is bounded, so the memory use does not depend on the size
+ * of the file. All columns apart from the SMILES are set as properties of the molecules.
+ *
+ * Rows that cannot be parsed are skipped and recorded as failed records, using the same FailedRecord
+ * type as the CPSign readers.
+ */
+public class ParallelCSVChemReader implements Iterator<IAtomContainer>, AutoCloseable {
+
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	private static class ParsedRecord {
+		final IAtomContainer molecule;
+		final FailedRecord failure;
+
+		ParsedRecord(IAtomContainer molecule, FailedRecord failure) {
+			this.molecule = molecule;
+			this.failure = failure;
+		}
+	}
+
+	private static final ThreadLocal<SmilesParser> SMILES_PARSER = ThreadLocal.withInitial(
+			() -> new SmilesParser(SilentChemObjectBuilder.getInstance()));
+
+	private final CSVParser parser;
+	private final String smilesHeader;
+	private final int batchSize;
+	private final ExecutorService pool;
+	private final Thread readerThread;
+	private final BlockingQueue<Future<List<ParsedRecord>>> queue;
+	private final List<FailedRecord> failedRecords = Collections.synchronizedList(new ArrayList<>());
+
+	private Iterator<ParsedRecord> currentBatch = Collections.emptyIterator();
+	private IAtomContainer nextMol;
+	private boolean finished = false;
+	private int numRecords = 0;
+
+	public ParallelCSVChemReader(CSVFormat format, Reader reader) throws IOException {
+		this(format, reader, null, Runtime.getRuntime().availableProcessors(), DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param format the CSV format, if no header is given in the format it is read from the first row
+	 * @param reader the data to read
+	 * @param smilesHeader the header of the SMILES column, or {@code null} to find the first column containing "smiles"
+	 * @param numThreads number of threads used for parsing SMILES
+	 * @param batchSize number of rows handed to a worker at a time
+	 * @throws IOException if failing to read the header
+	 * @throws IllegalArgumentException if no SMILES column could be found
+	 */
+	public ParallelCSVChemReader(CSVFormat format, Reader reader, String smilesHeader, int numThreads, int batchSize)
+			throws IOException, IllegalArgumentException {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("Number of threads must be at least 1, got: " + numThreads);
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1, got: " + batchSize);
+
+		CSVFormat withHeader = format.getHeader() != null ? format : format.builder().setHeader().setSkipHeaderRecord(true).build();
+		this.parser = withHeader.parse(reader);
+		this.smilesHeader = findSmilesHeader(parser.getHeaderNames(), smilesHeader);
+		this.batchSize = batchSize;
+		this.pool = Executors.newFixedThreadPool(numThreads);
+		// Bounds the number of batches read but not yet consumed
+		this.queue = new ArrayBlockingQueue<>(2 * numThreads);
+
+		this.readerThread = new Thread(this::readRows, "csv-reader");
+		this.readerThread.setDaemon(true);
+		this.readerThread.start();
+	}
+
+	private static String findSmilesHeader(List<String> headers, String requested) {
+		for (String h : headers) {
+			if (requested != null ? h.equals(requested) : h.toLowerCase().contains("smiles"))
+				return h;
+		}
+		throw new IllegalArgumentException(requested != null ?
+				"No column with header '" + requested + "' found in CSV, got headers: " + headers :
+				"No SMILES column found in CSV, got headers: " + headers);
+	}
+
+	private void readRows() {
+		try {
+			int index = 0;
+			List<CSVRecord> batch = new ArrayList<>(batchSize);
+			for (CSVRecord row : parser) {
+				batch.add(row);
+				if (batch.size() == batchSize) {
+					submit(batch, index);
+					index += batch.size();
+					batch = new ArrayList<>(batchSize);
+				}
+			}
+			if (!batch.isEmpty())
+				submit(batch, index);
+			// Marks the end of the data
+			queue.put(CompletableFuture.completedFuture(null));
+		} catch (InterruptedException e) {
+			// Closed before all data was read
+		} catch (Throwable e) {
+			// Pass any failure on to the consumer, which would otherwise wait forever for more data
+			CompletableFuture<List<ParsedRecord>> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			try {
+				queue.put(failed);
+			} catch (InterruptedException ie) {}
+		}
+	}
+
+	private void submit(List<CSVRecord> batch, int firstIndex) throws InterruptedException {
+		queue.put(pool.submit(() -> parse(batch, firstIndex)));
+	}
+
+	private List<ParsedRecord> parse(List<CSVRecord> batch, int firstIndex) {
+		List<ParsedRecord> result = new ArrayList<>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			int index = firstIndex + i;
+			CSVRecord row = batch.get(i);
+			try {
+				String smiles = row.isMapped(smilesHeader) ? row.get(smilesHeader) : null;
+				if (smiles == null || smiles.trim().isEmpty()) {
+					result.add(new ParsedRecord(null, new FailedRecord.Builder(index, Cause.MISSING_STRUCTURE)
+							.withReason("No SMILES given").build()));
+					continue;
+				}
+				IAtomContainer mol = SMILES_PARSER.get().parseSmiles(smiles.trim());
+				for (Map.Entry<String,String> col : row.toMap().entrySet()) {
+					if (!col.getKey().equals(smilesHeader) && col.getValue() != null)
+						mol.setProperty(col.getKey(), col.getValue());
+				}
+				result.add(new ParsedRecord(mol, null));
+			} catch (Exception e) {
+				result.add(new ParsedRecord(null, new FailedRecord.Builder(index, Cause.INVALID_STRUCTURE)
+						.withReason("Invalid SMILES: " + e.getMessage()).build()));
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (nextMol != null)
+			return true;
+		while (!finished) {
+			while (currentBatch.hasNext()) {
+				ParsedRecord r = currentBatch.next();
+				numRecords++;
+				if (r.molecule != null) {
+					nextMol = r.molecule;
+					return true;
+				}
+				failedRecords.add(r.failure);
+			}
+			List<ParsedRecord> batch = takeNextBatch();
+			if (batch == null) {
+				finished = true;
+				close();
+			} else {
+				currentBatch = batch.iterator();
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public IAtomContainer next() {
+		if (!hasNext())
+			throw new NoSuchElementException("No more molecules");
+		IAtomContainer mol = nextMol;
+		nextMol = null;
+		return mol;
+	}
+
+	private List<ParsedRecord> takeNextBatch() {
+		try {
+			return queue.take().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while reading CSV", e);
+		} catch (ExecutionException e) {
+			close();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			if (e.getCause() instanceof UncheckedIOException)
+				throw (UncheckedIOException) e.getCause();
+			throw new IllegalStateException("Failed reading CSV: " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	/**
+	 * The number of records read so far, including the failed ones
+	 */
+	public int getNumRecordsRead() {
+		return numRecords;
+	}
+
+	/**
+	 * The number of records that were skipped as they could not be parsed, see {@link #getFailedRecords()}
+	 */
+	public int getRecordsSkipped() {
+		return failedRecords.size();
+	}
+
+	public List<FailedRecord> getFailedRecords() {
+		return new ArrayList<>(failedRecords);
+	}
+
+	@Override
+	public void close() {
+		readerThread.interrupt();
+		pool.shutdownNow();
+		try {
+			parser.close();
+		} catch (IOException e) {}
+	}
+
+}
@@ -0,0 +1,267 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.arosbio.data.DataRecord;
+import com.arosbio.data.Dataset;
+import com.arosbio.data.Dataset.SubSet;
+import com.arosbio.ml.cp.CPRegressionPrediction;
+import com.arosbio.ml.cp.ConformalClassifier;
+import com.arosbio.ml.cp.ConformalRegressor;
+import com.arosbio.ml.interfaces.Predictor;
+import com.arosbio.ml.metrics.Metric;
+import com.arosbio.ml.metrics.MetricFactory;
+import com.arosbio.ml.metrics.cp.ConfidenceDependentMetric;
+import com.arosbio.ml.metrics.cp.classification.CPClassifierMetric;
+import com.arosbio.ml.metrics.cp.regression.CPRegressionMetric;
+import com.arosbio.ml.metrics.classification.PointClassifierMetric;
+import com.arosbio.ml.metrics.classification.ProbabilisticMetric;
+import com.arosbio.ml.metrics.plots.PlotMetric;
+import com.arosbio.ml.metrics.regression.PointPredictionMetric;
+import com.arosbio.ml.metrics.vap.VAPMetric;
+import com.arosbio.ml.vap.avap.AVAPClassifier;
+import com.arosbio.ml.vap.avap.CVAPPrediction;
+
+import utils.DataSplits.Split;
+
+/*
+ * K-fold cross-validation where the folds are trained and evaluated concurrently, instead of one
+ * after another as in TestRunner with KFoldCV. Each fold trains its own clone of the predictor, so
+ * the maximum number of folds that are in flight at the same time also bounds the peak memory use.
+ *
+ * Every fold is evaluated the same way: its predictions are added to one shared set of metrics as the fold
+ * finishes, in the same way as the TestRunner adds the predictions of all folds to the same metrics - so all
+ * types of metrics (including medians and plots) give the same result as when evaluating the folds one after
+ * another. Conformal, point prediction, probabilistic and Venn-ABERS metrics are supported, other metrics (or
+ * metrics that cannot be computed for the type of predictor) give an IllegalArgumentException before any fold
+ * is trained. When no metrics are given, the default metrics of the predictor (as used by the TestRunner) are used.
+ */
+public class ParallelCrossValidation {
+
+	public static final int DEFAULT_NUM_FOLDS = 10;
+
+	private final int numFolds;
+	private final long seed;
+	private final int maxFoldsInFlight;
+
+	public ParallelCrossValidation() {
+		this(DEFAULT_NUM_FOLDS, System.currentTimeMillis(), Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param numFolds the number of folds
+	 * @param seed the seed used for splitting the data into folds
+	 * @param maxFoldsInFlight the maximum number of folds that are trained and evaluated at the same time
+	 */
+	public ParallelCrossValidation(int numFolds, long seed, int maxFoldsInFlight) {
+		if (numFolds < 2)
+			throw new IllegalArgumentException("Number of folds must be at least 2, got: " + numFolds);
+		if (maxFoldsInFlight < 1)
+			throw new IllegalArgumentException("Maximum number of folds in flight must be at least 1, got: " + maxFoldsInFlight);
+		this.numFolds = numFolds;
+		this.seed = seed;
+		this.maxFoldsInFlight = maxFoldsInFlight;
+	}
+
+	public int getNumFolds() {
+		return numFolds;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public int getMaxFoldsInFlight() {
+		return maxFoldsInFlight;
+	}
+
+	/**
+	 * Evaluate the predictor using the default metrics of the TestRunner
+	 * @param data the data
+	 * @param predictor the predictor, which is cloned for each fold
+	 * @return the metrics, computed over the predictions of all folds
+	 */
+	public List<Metric> evaluate(Dataset data, Predictor predictor) {
+		return evaluate(data, predictor, DataSplits.folds(data.getDataset().size(), numFolds, seed), null);
+	}
+
+	/**
+	 * Evaluate the predictor using the given metrics
+	 * @param data the data
+	 * @param predictor the predictor, which is cloned for each fold
+	 * @param metrics the metrics to compute, which are cloned (the given instances are not modified)
+	 * @return the metrics, computed over the predictions of all folds
+	 */
+	public List<Metric> evaluate(Dataset data, Predictor predictor, List<Metric> metrics) {
+		return evaluate(data, predictor, DataSplits.folds(data.getDataset().size(), numFolds, seed), metrics);
+	}
+
+	/**
+	 * Evaluate the predictor using the given (precomputed) splits
+	 * @param data the data
+	 * @param predictor the predictor, which is cloned for each split
+	 * @param splits the splits into training and test records
+	 * @param metrics the metrics to compute, or {@code null} for the default metrics of the TestRunner
+	 * @return the metrics, computed over the predictions of all splits
+	 */
+	public List<Metric> evaluate(Dataset data, Predictor predictor, List<Split> splits, List<Metric> metrics) {
+		// The default metrics are the same as the TestRunner uses, and are decided before any fold is evaluated
+		List<Metric> shared = new ArrayList<>();
+		if (metrics != null) {
+			for (Metric m : metrics)
+				shared.add(m.clone());
+		} else {
+			shared.addAll(MetricFactory.getDefaultMetrics(predictor));
+		}
+		checkSupported(predictor, shared);
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(maxFoldsInFlight, splits.size()));
+		try {
+			List<Future<?>> futures = new ArrayList<>(splits.size());
+			for (Split split : splits) {
+				futures.add(pool.submit(() -> {
+					addFold(data, predictor, split, shared);
+					return null;
+				}));
+			}
+			for (Future<?> f : futures)
+				f.get();
+			return shared;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while evaluating", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new IllegalStateException("Failed evaluating: " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Train a clone of the predictor on the training records of the split, and add the predictions of the held out
+	 * records to the (shared) metrics. Predictions are made outside of the lock, only adding them to the metrics is serialized
+	 */
+	static void addFold(Dataset data, Predictor predictor, Split split, List<Metric> metrics) {
+		Predictor p = predictor.clone();
+		p.train(trainingData(data, split));
+		SubSet test = DataSplits.select(data.getDataset(), split.getHeldOutIndices());
+		Predictions predictions = predict(p, test, metrics);
+		synchronized (metrics) {
+			predictions.addTo(metrics);
+		}
+	}
+
+	/**
+	 * The predictions of the test records of a single fold
+	 */
+	private static class Predictions {
+		final List<Double> labels = new ArrayList<>();
+		final List<Object> predictions = new ArrayList<>();
+
+		@SuppressWarnings("unchecked")
+		void addTo(List<Metric> metrics) {
+			for (int i = 0; i < labels.size(); i++) {
+				double label = labels.get(i);
+				Object pred = predictions.get(i);
+				for (Metric m : metrics) {
+					if (m instanceof CPClassifierMetric) {
+						((CPClassifierMetric) m).addPrediction((int) label, (Map<Integer,Double>) pred);
+					} else if (m instanceof CPRegressionMetric) {
+						((CPRegressionMetric) m).addPrediction(label, (CPRegressionPrediction) pred);
+					} else if (m instanceof PointPredictionMetric) {
+						((PointPredictionMetric) m).addPrediction(label, ((CPRegressionPrediction) pred).getY_hat());
+					} else if (m instanceof VAPMetric) {
+						CVAPPrediction<Integer> p = (CVAPPrediction<Integer>) pred;
+						((VAPMetric) m).addPrediction((int) label, p.getProbabilities(), p.getMeanP0P1Width(), p.getMedianP0P1Width());
+					} else if (m instanceof ProbabilisticMetric) {
+						((ProbabilisticMetric) m).addPrediction((int) label, ((CVAPPrediction<Integer>) pred).getProbabilities());
+					} else if (m instanceof PointClassifierMetric) {
+						// The predicted label is the one with the highest p-value or probability
+						Map<Integer,Double> scores = pred instanceof CVAPPrediction ? 
+								((CVAPPrediction<Integer>) pred).getProbabilities() : (Map<Integer,Double>) pred;
+						((PointClassifierMetric) m).addPrediction((int) label, argMax(scores));
+					}
+				}
+			}
+		}
+	}
+
+	private static int argMax(Map<Integer,Double> scores) {
+		int best = 0;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (Map.Entry<Integer,Double> kv : scores.entrySet()) {
+			if (kv.getValue() > bestScore) {
+				best = kv.getKey();
+				bestScore = kv.getValue();
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Check that all metrics can be computed for the predictor, before any fold is trained
+	 */
+	static void checkSupported(Predictor predictor, List<Metric> metrics) {
+		for (Metric m : metrics) {
+			boolean supported = (predictor instanceof ConformalClassifier && (m instanceof CPClassifierMetric || m instanceof PointClassifierMetric))
+					|| (predictor instanceof ConformalRegressor && (m instanceof CPRegressionMetric || m instanceof PointPredictionMetric))
+					|| (predictor instanceof AVAPClassifier && (m instanceof VAPMetric || m instanceof ProbabilisticMetric || m instanceof PointClassifierMetric));
+			if (!supported)
+				throw new IllegalArgumentException("Metric " + m.getName() + " is not supported for predictor " + predictor.getClass().getSimpleName());
+		}
+	}
+
+	private static Predictions predict(Predictor predictor, SubSet test, List<Metric> metrics) {
+		List<Double> confidences = getConfidences(metrics);
+		Predictions result = new Predictions();
+		for (DataRecord r : test) {
+			result.labels.add(r.getLabel());
+			if (predictor instanceof ConformalClassifier)
+				result.predictions.add(((ConformalClassifier) predictor).predict(r.getFeatures()));
+			else if (predictor instanceof ConformalRegressor)
+				result.predictions.add(((ConformalRegressor) predictor).predict(r.getFeatures(), confidences));
+			else
+				result.predictions.add(((AVAPClassifier) predictor).predict(r.getFeatures()));
+		}
+		return result;
+	}
+
+	/**
+	 * All confidence levels that regression metrics need prediction intervals for
+	 */
+	private static List<Double> getConfidences(List<Metric> metrics) {
+		TreeSet<Double> confidences = new TreeSet<>();
+		for (Metric m : metrics) {
+			if (m instanceof PlotMetric)
+				confidences.addAll(((PlotMetric) m).getEvaluationPoints());
+			else if (m instanceof ConfidenceDependentMetric)
+				confidences.add(((ConfidenceDependentMetric) m).getConfidence());
+		}
+		return new ArrayList<>(confidences);
+	}
+
+	static Dataset trainingData(Dataset data, Split split) {
+		Dataset training = new Dataset();
+		training.setDataset(DataSplits.select(data.getDataset(), split.getTrainingIndices()));
+		// Exclusive records are only used for training, never for testing
+		SubSet modelingExclusive = data.getModelingExclusiveDataset();
+		if (modelingExclusive != null)
+			training.withModelingExclusiveDataset(modelingExclusive);
+		SubSet calibrationExclusive = data.getCalibrationExclusiveDataset();
+		if (calibrationExclusive != null)
+			training.withCalibrationExclusiveDataset(calibrationExclusive);
+		return training;
+	}
+
+}
@@ -0,0 +1,256 @@
+package utils;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+import com.arosbio.chem.io.in.FailedRecord;
+import com.arosbio.chem.io.in.FailedRecord.Cause;
+import com.arosbio.cheminf.ChemDataset;
+import com.arosbio.cheminf.descriptors.ChemDescriptor;
+import com.arosbio.data.DataRecord;
+import com.arosbio.data.FeatureVector;
+import com.arosbio.data.NamedLabels;
+
+/*
+ * Computes descriptors for molecules using a pool of worker threads, instead of the single
+ * thread used by ChemDataset.add / ChemCPClassifier.addRecords. The molecule iterator is read
+ * by the calling thread which cuts the molecules into chunks, a bounded number of chunks are
+ * computed concurrently and the records are merged into the dataset in the same order as the input.
+ *
+ * Note that this only works for descriptors with a fixed length (e.g. the CDK descriptors), as
+ * these map each feature to the same index regardless of which thread computed it. The signatures
+ * descriptor builds up its dictionary of signatures while computing records, so datasets using it
+ * are loaded using the normal (serial) code path.
+ *
+ * Optionally a DescriptorCache can be given, so that molecules that have been computed in an earlier
+ * run (with the same descriptors) are read from the cache instead. Note that when using the cache,
+ * molecules are computed one at a time. Molecules that fail are not added, and are recorded as failed
+ * records (see getFailedRecords) with their index in the input.
+ */
+public class ParallelDescriptorLoader {
+
+	public static final int DEFAULT_CHUNK_SIZE = 50;
+
+	private final int numThreads;
+	private final int chunkSize;
+	private final int maxChunksInFlight;
+	private DescriptorCache cache;
+	private final List<FailedRecord> failedRecords = Collections.synchronizedList(new ArrayList<>());
+
+	public ParallelDescriptorLoader() {
+		this(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+	}
+
+	public ParallelDescriptorLoader(int numThreads, int chunkSize) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("Number of threads must be at least 1, got: " + numThreads);
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("Chunk size must be at least 1, got: " + chunkSize);
+		this.numThreads = numThreads;
+		this.chunkSize = chunkSize;
+		// Keep a couple of chunks queued per thread so workers never wait for the reader
+		this.maxChunksInFlight = 2 * numThreads;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public ParallelDescriptorLoader withCache(DescriptorCache cache) {
+		this.cache = cache;
+		return this;
+	}
+
+	public DescriptorCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * The molecules of the last call to addRecords that failed when computing descriptors using the cache.
+	 * Without a cache the failures are handled by the ChemDataset, as for {@code dataset.add(molecules, property)}
+	 */
+	public List<FailedRecord> getFailedRecords() {
+		List<FailedRecord> failed = new ArrayList<>(failedRecords);
+		failed.sort(Comparator.comparingInt(FailedRecord::getIndex));
+		return failed;
+	}
+
+	/**
+	 * Add regression records, equivalent to {@code dataset.add(molecules, property)}
+	 */
+	public void addRecords(ChemDataset dataset, Iterator<IAtomContainer> molecules, String property)
+			throws IllegalArgumentException {
+		addRecords(dataset, molecules, property, null);
+	}
+
+	/**
+	 * Add classification records, equivalent to {@code dataset.add(molecules, property, labels)}.
+	 * If {@code labels} is {@code null} the records are treated as regression records
+	 */
+	public void addRecords(ChemDataset dataset, Iterator<IAtomContainer> molecules, String property, NamedLabels labels)
+			throws IllegalArgumentException {
+
+		boolean fixedLength = hasFixedLength(dataset.getDescriptors());
+		DescriptorCache chunkCache = fixedLength ? cache : null;
+		failedRecords.clear();
+
+		// The first chunk is computed in the calling thread - making sure that descriptors
+		// are initialized and labels are set before the dataset is copied to the workers
+		List<IAtomContainer> first = nextChunk(molecules);
+		addChunk(dataset, first, 0, property, labels, chunkCache, true);
+		int numRead = first.size();
+
+		if (!molecules.hasNext())
+			return;
+
+		if (!fixedLength) {
+			addSerially(dataset, molecules, property, labels);
+			return;
+		}
+		if (numThreads == 1) {
+			while (molecules.hasNext()) {
+				List<IAtomContainer> chunk = nextChunk(molecules);
+				addChunk(dataset, chunk, numRead, property, labels, chunkCache, false);
+				numRead += chunk.size();
+			}
+			return;
+		}
+
+		// An empty copy of the dataset, used as template for each chunk
+		ChemDataset template = dataset.clone();
+		template.getDataset().clear();
+
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		Deque<Future<List<DataRecord>>> inFlight = new ArrayDeque<>();
+		try {
+			while (molecules.hasNext()) {
+				List<IAtomContainer> chunk = nextChunk(molecules);
+				int firstIndex = numRead;
+				inFlight.add(pool.submit(() -> computeChunk(template, chunk, firstIndex, property, labels, chunkCache)));
+				numRead += chunk.size();
+
+				// Bounded queue - wait for the oldest chunk before reading more molecules
+				if (inFlight.size() >= maxChunksInFlight)
+					dataset.getDataset().addAll(getResult(inFlight.poll()));
+			}
+			while (!inFlight.isEmpty())
+				dataset.getDataset().addAll(getResult(inFlight.poll()));
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private List<IAtomContainer> nextChunk(Iterator<IAtomContainer> molecules) {
+		List<IAtomContainer> chunk = new ArrayList<>(chunkSize);
+		while (molecules.hasNext() && chunk.size() < chunkSize)
+			chunk.add(molecules.next());
+		return chunk;
+	}
+
+	private List<DataRecord> computeChunk(ChemDataset template, List<IAtomContainer> chunk, int firstIndex,
+			String property, NamedLabels labels, DescriptorCache cache) {
+		ChemDataset part = template.clone();
+		addChunk(part, chunk, firstIndex, property, labels, cache, false);
+		return part.getDataset();
+	}
+
+	private void addChunk(ChemDataset dataset, List<IAtomContainer> chunk, int firstIndex,
+			String property, NamedLabels labels, DescriptorCache cache, boolean initialize) {
+		if (cache == null) {
+			addSerially(dataset, chunk.iterator(), property, labels);
+			return;
+		}
+
+		for (int i = 0; i < chunk.size(); i++) {
+			IAtomContainer mol = chunk.get(i);
+			String key = DescriptorCache.getKey(mol, dataset.getDescriptors());
+
+			// When initializing, the first record must be computed to set up descriptors and labels
+			if (!(initialize && dataset.getDataset().isEmpty())) {
+				FeatureVector cached = cache.get(key);
+				Double label = cached != null ? getLabel(mol, property, labels) : null;
+				if (label != null) {
+					dataset.getDataset().add(new DataRecord(label, cached));
+					continue;
+				}
+			}
+
+			int sizeBefore = dataset.getDataset().size();
+			try {
+				addSerially(dataset, Collections.singleton(mol).iterator(), property, labels);
+			} catch (RuntimeException e) {
+				// Failed computing descriptors or finding the label - the molecule is not added
+				failedRecords.add(new FailedRecord.Builder(firstIndex + i, Cause.DESCRIPTOR_CALC_ERROR)
+						.withReason(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName()).build());
+				continue;
+			}
+			if (dataset.getDataset().size() > sizeBefore) {
+				try {
+					cache.put(key, dataset.getDataset().get(sizeBefore).getFeatures());
+				} catch (IOException e) {
+					// Failing to write to the cache should not stop the loading
+				}
+			}
+		}
+	}
+
+	private static Double getLabel(IAtomContainer mol, String property, NamedLabels labels) {
+		Object value = mol.getProperty(property);
+		if (value == null)
+			return null;
+		try {
+			if (labels != null)
+				return (double) labels.getValue(value.toString().trim());
+			return Double.parseDouble(value.toString().trim());
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static void addSerially(ChemDataset dataset, Iterator<IAtomContainer> molecules, String property, NamedLabels labels) {
+		if (!molecules.hasNext())
+			return;
+		if (labels != null)
+			dataset.add(molecules, property, labels);
+		else
+			dataset.add(molecules, property);
+	}
+
+	private static boolean hasFixedLength(List<ChemDescriptor> descriptors) {
+		for (ChemDescriptor d : descriptors) {
+			if (!d.hasFixedLength())
+				return false;
+		}
+		return true;
+	}
+
+	private static List<DataRecord> getResult(Future<List<DataRecord>> future) {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while computing descriptors", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException("Failed computing descriptors: " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+}
@@ -0,0 +1,392 @@
+package utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.arosbio.data.Dataset;
+import com.arosbio.ml.interfaces.Predictor;
+import com.arosbio.ml.metrics.Metric;
+import com.arosbio.ml.metrics.SingleValuedMetric;
+
+import utils.DataSplits.Split;
+
+/*
+ * A grid search where each (parameter combination, fold) pair is an independent task on a shared
+ * thread pool, instead of evaluating one combination at a time. The folds are computed once and
+ * used for all parameter combinations, so all combinations are evaluated on identical splits.
+ * The predictions of all folds of a combination are added to the same instance of the evaluation
+ * metric (as in ParallelCrossValidation), so the score is computed over the pooled predictions as in
+ * the serial GridSearch - not as the mean of the scores of each fold.
+ * Results are written to the logging writer as soon as all folds of a combination are finished.
+ *
+ * Optionally, successive halving can be used to drop combinations that are clearly worse than the
+ * others early on, based on the scores of the first few folds, so that only the most promising
+ * combinations are evaluated on all folds.
+ */
+public class ParallelGridSearch {
+
+	public static class Builder {
+		private int numFolds = 5;
+		private long seed = System.currentTimeMillis();
+		private int numThreads = Runtime.getRuntime().availableProcessors();
+		private SingleValuedMetric evaluationMetric;
+		private Writer loggingWriter;
+		private int halvingFactor = 0;
+
+		public Builder numFolds(int numFolds) {
+			this.numFolds = numFolds;
+			return this;
+		}
+
+		public Builder seed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		public Builder numThreads(int numThreads) {
+			this.numThreads = numThreads;
+			return this;
+		}
+
+		public Builder evaluationMetric(SingleValuedMetric metric) {
+			this.evaluationMetric = metric;
+			return this;
+		}
+
+		public Builder loggingWriter(Writer writer) {
+			this.loggingWriter = writer;
+			return this;
+		}
+
+		/**
+		 * Use successive halving instead of an exhaustive search. All combinations are first evaluated on a
+		 * single fold, after which only the best {@code 1/factor} of them are kept and evaluated on
+		 * {@code factor} times as many folds, until the remaining combinations are evaluated on all folds.
+		 * Scores of folds that were already evaluated are reused in the later rounds.
+		 * @param factor the reduction factor, at least 2, or 0 to use an exhaustive search
+		 * @return the same builder
+		 */
+		public Builder successiveHalving(int factor) {
+			this.halvingFactor = factor;
+			return this;
+		}
+
+		public ParallelGridSearch build() {
+			return new ParallelGridSearch(this);
+		}
+	}
+
+	public static class Result {
+		private final Map<String,Object> params;
+		private final double score;
+		private final int numFolds;
+		private final String failure;
+
+		private Result(Map<String,Object> params, double score, int numFolds, String failure) {
+			this.params = params;
+			this.score = score;
+			this.numFolds = numFolds;
+			this.failure = failure;
+		}
+
+		public Map<String,Object> getParams() {
+			return params;
+		}
+
+		/**
+		 * The score of the evaluation metric over the predictions of all folds, or {@code NaN} if the evaluation failed
+		 */
+		public double getScore() {
+			return score;
+		}
+
+		/**
+		 * The number of folds the score is based on, which is less than the total number of folds
+		 * for combinations that were dropped early by successive halving. For failed combinations
+		 * this is the number of folds that were evaluated successfully before the failure
+		 */
+		public int getNumFolds() {
+			return numFolds;
+		}
+
+		public boolean failed() {
+			return failure != null;
+		}
+
+		public String getFailure() {
+			return failure;
+		}
+
+		@Override
+		public String toString() {
+			if (failed())
+				return String.format("%s: failed (%s)", params, failure);
+			return String.format("%s: %s (%d folds)", params, score, numFolds);
+		}
+	}
+
+	/**
+	 * The result of a search, giving the best parameters in the same format as the GridSearchResult of the
+	 * (serial) GridSearch, i.e. as a list sorted with the best one first
+	 */
+	public static class SearchResult {
+		private final List<Result> bestParameters;
+		private final List<Result> allResults;
+
+		private SearchResult(List<Result> allResults, int numFolds) {
+			this.allResults = allResults;
+			this.bestParameters = new ArrayList<>();
+			for (Result r : allResults) {
+				if (!r.failed() && r.numFolds == numFolds)
+					bestParameters.add(r);
+			}
+		}
+
+		/**
+		 * The combinations that were evaluated on all folds, sorted with the best one first. Combinations
+		 * dropped early by successive halving are not included, as their scores are based on fewer folds
+		 */
+		public List<Result> getBestParameters() {
+			return bestParameters;
+		}
+
+		/**
+		 * The results of all combinations. Combinations are grouped by the number of folds they were evaluated
+		 * on (most folds first), and only ranked against the other combinations evaluated on the same folds.
+		 * Failed combinations are last
+		 */
+		public List<Result> getAllResults() {
+			return allResults;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("SearchResult[best=%s, %d combinations]", 
+					bestParameters.isEmpty() ? "none" : bestParameters.get(0), allResults.size());
+		}
+	}
+
+	private final int numFolds;
+	private final long seed;
+	private final int numThreads;
+	private final SingleValuedMetric evaluationMetric;
+	private final Writer loggingWriter;
+	private final int halvingFactor;
+
+	private ParallelGridSearch(Builder b) {
+		if (b.evaluationMetric == null)
+			throw new IllegalArgumentException("An evaluation metric must be given");
+		if (b.numFolds < 2)
+			throw new IllegalArgumentException("Number of folds must be at least 2, got: " + b.numFolds);
+		if (b.numThreads < 1)
+			throw new IllegalArgumentException("Number of threads must be at least 1, got: " + b.numThreads);
+		if (b.halvingFactor != 0 && b.halvingFactor < 2)
+			throw new IllegalArgumentException("Successive halving factor must be at least 2, got: " + b.halvingFactor);
+		this.numFolds = b.numFolds;
+		this.seed = b.seed;
+		this.numThreads = b.numThreads;
+		this.evaluationMetric = b.evaluationMetric;
+		this.loggingWriter = b.loggingWriter;
+		this.halvingFactor = b.halvingFactor;
+	}
+
+	/**
+	 * Run the grid search
+	 * @param data the data
+	 * @param predictor the predictor, which is cloned and configured for each task
+	 * @param paramGrid parameter name to the values to try
+	 * @return the result, with the best parameters first
+	 */
+	public SearchResult search(Dataset data, Predictor predictor, Map<String,List<?>> paramGrid) {
+		ParallelCrossValidation.checkSupported(predictor, Arrays.asList((Metric) evaluationMetric));
+		List<Split> folds = DataSplits.folds(data.getDataset().size(), numFolds, seed);
+		List<Candidate> candidates = new ArrayList<>();
+		for (Map<String,Object> params : getCombinations(paramGrid))
+			candidates.add(new Candidate(params, evaluationMetric));
+
+		List<Result> results = new ArrayList<>();
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try {
+			if (halvingFactor == 0) {
+				results.addAll(runRound(pool, data, predictor, candidates, folds));
+			} else {
+				List<Candidate> remaining = candidates;
+				int numFoldsInRound = 1;
+				while (true) {
+					List<Result> round = runRound(pool, data, predictor, remaining, folds.subList(0, numFoldsInRound));
+					round.sort(resultComparator());
+					// Continue until the remaining combinations are evaluated on all folds, also when only one is left
+					if (numFoldsInRound == folds.size()) {
+						results.addAll(round);
+						break;
+					}
+					int numToKeep = Math.max(1, round.size() / halvingFactor);
+					// Dropped combinations keep the score of the folds they were evaluated on
+					results.addAll(round.subList(numToKeep, round.size()));
+					remaining = new ArrayList<>();
+					for (Result r : round.subList(0, numToKeep))
+						remaining.add(findCandidate(candidates, r.params));
+					numFoldsInRound = Math.min(folds.size(), numFoldsInRound * halvingFactor);
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		// Failed combinations last, then the ones evaluated on more folds first. Combinations evaluated on the 
+		// same number of folds are evaluated on the same folds (the first ones), and only ranked against each other
+		results.sort(Comparator.comparing(Result::failed)
+				.thenComparingInt((Result r) -> -r.numFolds)
+				.thenComparing(resultComparator()));
+		return new SearchResult(results, folds.size());
+	}
+
+	/**
+	 * The evaluation state of a single parameter combination, where the predictions of all evaluated folds 
+	 * are added to the same metric instance
+	 */
+	private static class Candidate {
+		final Map<String,Object> params;
+		final List<Metric> metrics;
+		int numEvaluated = 0;
+		// The number of folds that were successfully evaluated
+		int numScored = 0;
+		String failure;
+
+		Candidate(Map<String,Object> params, SingleValuedMetric metric) {
+			this.params = params;
+			this.metrics = Arrays.asList((Metric) metric.clone());
+		}
+	}
+
+	private static Candidate findCandidate(List<Candidate> candidates, Map<String,Object> params) {
+		for (Candidate c : candidates) {
+			if (c.params == params)
+				return c;
+		}
+		throw new IllegalStateException("No candidate with parameters " + params);
+	}
+
+	/**
+	 * Evaluate the candidates on the given folds, skipping folds already evaluated in a previous round
+	 */
+	private List<Result> runRound(ExecutorService pool, Dataset data, Predictor predictor, List<Candidate> candidates, List<Split> folds) {
+		List<Result> results = Collections.synchronizedList(new ArrayList<>());
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (Candidate c : candidates) {
+				int first = c.numEvaluated;
+				if (c.failure != null || first >= folds.size()) {
+					results.add(toResult(c, folds.size()));
+					continue;
+				}
+				AtomicInteger remaining = new AtomicInteger(folds.size() - first);
+				for (int f = first; f < folds.size(); f++) {
+					final int fold = f;
+					futures.add(pool.submit(() -> {
+						try {
+							evaluate(data, predictor, c, folds.get(fold));
+							synchronized (c) {
+								c.numScored++;
+							}
+						} catch (RuntimeException e) {
+							synchronized (c) {
+								c.failure = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+							}
+						}
+						// The last fold to finish creates the result for the combination
+						if (remaining.decrementAndGet() == 0) {
+							Result r;
+							synchronized (c) {
+								c.numEvaluated = folds.size();
+								r = toResult(c, folds.size());
+							}
+							results.add(r);
+							log(r);
+						}
+					}));
+				}
+			}
+			for (Future<?> f : futures)
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted during grid search", e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Failed running grid search: " + e.getCause().getMessage(), e.getCause());
+		}
+		return new ArrayList<>(results);
+	}
+
+	private static Result toResult(Candidate c, int numFolds) {
+		if (c.failure != null)
+			return new Result(c.params, Double.NaN, c.numScored, c.failure);
+		double score;
+		synchronized (c.metrics) {
+			score = ((SingleValuedMetric) c.metrics.get(0)).getScore();
+		}
+		return new Result(c.params, score, numFolds, null);
+	}
+
+	private static void evaluate(Dataset data, Predictor predictor, Candidate c, Split fold) {
+		Predictor p = predictor.clone();
+		p.setConfigParameters(c.params);
+		ParallelCrossValidation.addFold(data, p, fold, c.metrics);
+	}
+
+	private Comparator<Result> resultComparator() {
+		boolean minimize = evaluationMetric.goalIsMinimization();
+		return (a, b) -> {
+			if (a.failed() || b.failed())
+				return Boolean.compare(a.failed(), b.failed());
+			return minimize ? Double.compare(a.score, b.score) : Double.compare(b.score, a.score);
+		};
+	}
+
+	private void log(Result r) {
+		if (loggingWriter == null)
+			return;
+		synchronized (loggingWriter) {
+			try {
+				loggingWriter.write(r.toString() + System.lineSeparator());
+				loggingWriter.flush();
+			} catch (IOException e) {
+				// Logging should not stop the search
+			}
+		}
+	}
+
+	/**
+	 * All combinations of the parameter values, iterating the parameters in alphabetical order
+	 */
+	static List<Map<String,Object>> getCombinations(Map<String,List<?>> paramGrid) {
+		List<Map<String,Object>> combinations = new ArrayList<>();
+		combinations.add(new LinkedHashMap<>());
+		for (Map.Entry<String,List<?>> param : new TreeMap<>(paramGrid).entrySet()) {
+			List<Map<String,Object>> extended = new ArrayList<>();
+			for (Map<String,Object> c : combinations) {
+				for (Object value : param.getValue()) {
+					Map<String,Object> copy = new LinkedHashMap<>(c);
+					copy.put(param.getKey(), value);
+					extended.add(copy);
+				}
+			}
+			combinations = extended;
+		}
+		return combinations;
+	}
+
+}
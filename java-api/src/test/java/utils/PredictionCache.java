@@ -0,0 +1,151 @@
+package utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.smiles.SmiFlavor;
+import org.openscience.cdk.smiles.SmilesGenerator;
+
+import utils.BatchPredictor.PredictFunction;
+
+/*
+ * A size-bounded, thread-safe, in-memory cache of predictions, for services where the same molecules are
+ * predicted over and over again. Predictions are keyed by the canonical (absolute) SMILES of the molecule
+ * together with an identifier of the model, and the least recently used predictions are evicted once the
+ * cache is full. A cache hit skips both the descriptor calculation and the prediction itself.
+ *
+ * Changing the model identifier (e.g. when a new model is deployed) invalidates all cached predictions.
+ * The cached predictions are shared between callers and should not be modified.
+ */
+public class PredictionCache<R> {
+
+	public static final int DEFAULT_MAX_ENTRIES = 10_000;
+
+	private final int maxEntries;
+	private final Map<String,R> entries;
+	private String modelId;
+	private long hits = 0, misses = 0;
+
+	public PredictionCache(String modelId) {
+		this(modelId, DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * @param modelId an identifier of the model, e.g. the model file and version
+	 * @param maxEntries the maximum number of cached predictions
+	 */
+	public PredictionCache(String modelId, int maxEntries) {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("Maximum number of entries must be at least 1, got: " + maxEntries);
+		this.modelId = modelId;
+		this.maxEntries = maxEntries;
+		// Access order gives the least recently used entry first
+		this.entries = new LinkedHashMap<String,R>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,R> eldest) {
+				return size() > PredictionCache.this.maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Get the cached prediction of the molecule, or predict it using the predictor and cache the result.
+	 * Molecules for which no canonical SMILES can be generated are predicted without being cached
+	 * @param molecule the molecule
+	 * @param predictor the predictor of the current model
+	 * @return the prediction
+	 * @throws Exception if the prediction failed, failures are not cached
+	 */
+	public R predict(IAtomContainer molecule, PredictFunction<R> predictor) throws Exception {
+		String id;
+		synchronized (this) {
+			id = modelId;
+		}
+		String key = getKey(id, molecule);
+		if (key != null) {
+			synchronized (this) {
+				R cached = entries.get(key);
+				if (cached != null) {
+					hits++;
+					return cached;
+				}
+				misses++;
+			}
+		}
+		// Predict outside of the lock, so that other threads are not blocked
+		R prediction = predictor.predict(molecule);
+		if (key != null && prediction != null) {
+			synchronized (this) {
+				// Do not add predictions of a model that has been replaced in the meantime
+				if (id.equals(modelId))
+					entries.put(key, prediction);
+			}
+		}
+		return prediction;
+	}
+
+	/**
+	 * Wrap a predictor so that it uses this cache, e.g. for the predictors of a BatchPredictor. Several
+	 * wrapped predictors (e.g. one per thread) can share the same cache
+	 */
+	public PredictFunction<R> wrap(PredictFunction<R> predictor) {
+		return mol -> predict(mol, predictor);
+	}
+
+	static String getKey(String modelId, IAtomContainer molecule) {
+		try {
+			return modelId + '\n' + new SmilesGenerator(SmiFlavor.Absolute).create(molecule);
+		} catch (CDKException e) {
+			return null;
+		}
+	}
+
+	public synchronized String getModelId() {
+		return modelId;
+	}
+
+	/**
+	 * Set the identifier of a new model, invalidating all cached predictions if it differs from the current one
+	 */
+	public synchronized void setModelId(String modelId) {
+		if (!this.modelId.equals(modelId)) {
+			this.modelId = modelId;
+			entries.clear();
+		}
+	}
+
+	public synchronized void invalidate() {
+		entries.clear();
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getNumHits() {
+		return hits;
+	}
+
+	public synchronized long getNumMisses() {
+		return misses;
+	}
+
+	public synchronized double getHitRate() {
+		return hits + misses > 0 ? ((double) hits) / (hits + misses) : 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("PredictionCache[model=%s, entries=%d/%d, hits=%d, misses=%d]",
+				modelId, entries.size(), maxEntries, hits, misses);
+	}
+
+}
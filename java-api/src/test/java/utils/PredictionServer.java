@@ -0,0 +1,404 @@
+package utils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.openscience.cdk.exception.InvalidSmilesException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.smiles.SmilesParser;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import utils.BatchPredictor.PredictFunction;
+import utils.BatchPredictor.PredictorFactory;
+
+/*
+ * A long-running prediction service on a local HTTP endpoint, that keeps the model loaded between requests.
+ * Requests are made by POSTing SMILES (one per line) to /predict, and the response contains one line per
+ * SMILES with the SMILES and its prediction (or error), separated by a tab. Statistics including latency
+ * percentiles are given by a GET to /stats.
+ *
+ * The molecules of concurrent requests are put on a shared queue, from which the worker threads take small
+ * batches - so that many small requests are handled with few hand-overs between threads, while a single large
+ * request is spread over all workers. Each worker uses its own predictor created by the factory (as in the
+ * BatchPredictor). The queue is bounded, and requests that do not fit are rejected with status 503 so that
+ * clients can back off, instead of the latency growing without bounds. Requests waiting for a handler thread 
+ * are bounded as well, connections exceeding that are also answered with 503 directly.
+ *
+ * Latencies are measured from when a request is accepted, i.e. including the time waiting for a handler thread.
+ */
+public class PredictionServer<R> implements AutoCloseable {
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 16;
+	public static final int DEFAULT_MAX_QUEUE_SIZE = 10_000;
+	public static final long DEFAULT_MAX_BATCH_DELAY_MILLIS = 2;
+	public static final int DEFAULT_MAX_PENDING_REQUESTS = 64;
+
+	/**
+	 * An accepted request, wrapping the exchange task of the HTTP server so that the handler knows when
+	 * the request was accepted, and whether it was rejected
+	 */
+	private class Request implements Runnable {
+		final Runnable exchange;
+		final long acceptedAt = System.nanoTime();
+		volatile boolean rejected = false;
+
+		Request(Runnable exchange) {
+			this.exchange = exchange;
+		}
+
+		@Override
+		public void run() {
+			currentRequest.set(this);
+			try {
+				exchange.run();
+			} finally {
+				currentRequest.remove();
+			}
+		}
+	}
+
+	private static class Item<R> {
+		final IAtomContainer molecule;
+		final CompletableFuture<R> result = new CompletableFuture<>();
+
+		Item(IAtomContainer molecule) {
+			this.molecule = molecule;
+		}
+	}
+
+	private final PredictorFactory<R> factory;
+	private final int port;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private int maxQueueSize = DEFAULT_MAX_QUEUE_SIZE;
+	private long maxBatchDelayMillis = DEFAULT_MAX_BATCH_DELAY_MILLIS;
+	private int maxPendingRequests = DEFAULT_MAX_PENDING_REQUESTS;
+
+	private HttpServer server;
+	private ExecutorService requestPool, workerPool;
+	private BlockingQueue<Item<R>> queue;
+	private final ThreadLocal<Request> currentRequest = new ThreadLocal<>();
+	// Free places in the queue, a request reserves places for all its molecules before queuing any of them
+	private Semaphore queueCapacity;
+	private volatile boolean running = false;
+
+	// Statistics, guarded by the latencies sketch
+	private final QuantileSketch latencies = new QuantileSketch();
+	private long numRequests = 0, numRejected = 0, numMolecules = 0, numPredicted = 0, numBatches = 0;
+
+	/**
+	 * @param factory creates the predict function of each worker thread
+	 * @param port the port to listen to, or 0 for any free port
+	 */
+	public PredictionServer(PredictorFactory<R> factory, int port) {
+		this.factory = factory;
+		this.port = port;
+	}
+
+	public PredictionServer<R> numThreads(int numThreads) {
+		if (numThreads < 1)
+			throw new IllegalArgumentException("Number of threads must be at least 1, got: " + numThreads);
+		this.numThreads = numThreads;
+		return this;
+	}
+
+	/**
+	 * The maximum number of molecules a worker predicts at a time
+	 */
+	public PredictionServer<R> maxBatchSize(int maxBatchSize) {
+		if (maxBatchSize < 1)
+			throw new IllegalArgumentException("Batch size must be at least 1, got: " + maxBatchSize);
+		this.maxBatchSize = maxBatchSize;
+		return this;
+	}
+
+	/**
+	 * The maximum number of molecules waiting to be predicted, requests that do not fit are rejected
+	 */
+	public PredictionServer<R> maxQueueSize(int maxQueueSize) {
+		if (maxQueueSize < 1)
+			throw new IllegalArgumentException("Queue size must be at least 1, got: " + maxQueueSize);
+		this.maxQueueSize = maxQueueSize;
+		return this;
+	}
+
+	/**
+	 * The maximum time a worker waits for more molecules before predicting a batch that is not full
+	 */
+	public PredictionServer<R> maxBatchDelay(long millis) {
+		if (millis < 0)
+			throw new IllegalArgumentException("Batch delay cannot be negative, got: " + millis);
+		this.maxBatchDelayMillis = millis;
+		return this;
+	}
+
+	/**
+	 * The maximum number of accepted requests waiting for a handler thread, further requests are rejected
+	 */
+	public PredictionServer<R> maxPendingRequests(int maxPendingRequests) {
+		if (maxPendingRequests < 1)
+			throw new IllegalArgumentException("Number of pending requests must be at least 1, got: " + maxPendingRequests);
+		this.maxPendingRequests = maxPendingRequests;
+		return this;
+	}
+
+	/**
+	 * Start the server, the predictors are created by the worker threads before the server starts accepting requests
+	 * @return the same instance
+	 * @throws IOException if the server could not be started
+	 */
+	public synchronized PredictionServer<R> start() throws IOException {
+		if (running)
+			throw new IllegalStateException("Server already started");
+		queue = new ArrayBlockingQueue<>(maxQueueSize);
+		queueCapacity = new Semaphore(maxQueueSize);
+		running = true;
+
+		// Create the predictors up front, so that the first requests do not pay for loading the model
+		workerPool = Executors.newFixedThreadPool(numThreads);
+		List<CompletableFuture<Void>> started = new ArrayList<>();
+		for (int i = 0; i < numThreads; i++) {
+			CompletableFuture<Void> ready = new CompletableFuture<>();
+			started.add(ready);
+			workerPool.submit(() -> work(ready));
+		}
+		try {
+			for (CompletableFuture<Void> ready : started)
+				ready.get();
+		} catch (InterruptedException | ExecutionException e) {
+			close();
+			if (e instanceof InterruptedException)
+				Thread.currentThread().interrupt();
+			throw new IllegalStateException("Failed creating predictor: " + (e.getCause() != null ? e.getCause().getMessage() : e.getMessage()), e);
+		}
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		// Requests waiting for a handler thread are bounded, the ones that do not fit are answered with 503 
+		// by the rejection handler, run by the server's dispatcher thread
+		requestPool = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<>(maxPendingRequests), (request, executor) -> {
+					((Request) request).rejected = true;
+					request.run();
+				});
+		server.setExecutor(exchange -> requestPool.execute(new Request(exchange)));
+		server.createContext("/predict", this::handlePredict);
+		server.createContext("/stats", this::handleStats);
+		server.start();
+		return this;
+	}
+
+	/**
+	 * The port the server listens to (useful when started on port 0)
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	private void work(CompletableFuture<Void> ready) {
+		PredictFunction<R> predictor;
+		try {
+			predictor = factory.create();
+			ready.complete(null);
+		} catch (Exception e) {
+			ready.completeExceptionally(e);
+			return;
+		}
+		List<Item<R>> batch = new ArrayList<>(maxBatchSize);
+		while (running) {
+			try {
+				Item<R> first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null)
+					continue;
+				batch.add(first);
+				// Fill up the batch with what is queued, waiting a short while for concurrent requests
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxBatchDelayMillis);
+				while (batch.size() < maxBatchSize) {
+					queue.drainTo(batch, maxBatchSize - batch.size());
+					long wait = deadline - System.nanoTime();
+					if (batch.size() >= maxBatchSize || wait <= 0)
+						break;
+					Item<R> next = queue.poll(wait, TimeUnit.NANOSECONDS);
+					if (next == null)
+						break;
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				break;
+			} finally {
+				queueCapacity.release(batch.size());
+			}
+			for (Item<R> item : batch) {
+				try {
+					item.result.complete(predictor.predict(item.molecule));
+				} catch (Exception e) {
+					item.result.completeExceptionally(e);
+				}
+			}
+			synchronized (latencies) {
+				numBatches++;
+				numPredicted += batch.size();
+			}
+			batch.clear();
+		}
+		// Fail the molecules left when shutting down
+		for (Item<R> item : batch)
+			item.result.completeExceptionally(new IllegalStateException("Server stopped"));
+	}
+
+	private void handlePredict(HttpExchange exchange) throws IOException {
+		Request request = currentRequest.get();
+		long start = request != null ? request.acceptedAt : System.nanoTime();
+		try {
+			if (request != null && request.rejected) {
+				synchronized (latencies) {
+					numRejected++;
+				}
+				respond(exchange, 503, "Server overloaded, try again later\n");
+				return;
+			}
+			if (!"POST".equalsIgnoreCase(exchange.getRequestMethod())) {
+				respond(exchange, 405, "Use POST with one SMILES per line\n");
+				return;
+			}
+			String[] lines = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8).split("\\r?\\n");
+
+			// Parse the SMILES in the request thread, the parser is not thread-safe so one is used per request
+			SmilesParser parser = new SmilesParser(SilentChemObjectBuilder.getInstance());
+			List<String> smiles = new ArrayList<>();
+			List<Item<R>> items = new ArrayList<>();
+			List<String> errors = new ArrayList<>();
+			for (String line : lines) {
+				String smi = line.trim();
+				if (smi.isEmpty())
+					continue;
+				smiles.add(smi);
+				try {
+					items.add(new Item<>(parser.parseSmiles(smi)));
+					errors.add(null);
+				} catch (InvalidSmilesException e) {
+					items.add(null);
+					errors.add("invalid SMILES");
+				}
+			}
+
+			// Queue all molecules of the request, or reject the request if they do not fit
+			int numToQueue = (int) items.stream().filter(i -> i != null).count();
+			if (numToQueue > maxQueueSize) {
+				respond(exchange, 413, "Too many molecules in a single request, the maximum is " + maxQueueSize + "\n");
+				return;
+			}
+			// Reserve the places first, so that no molecules are queued for a request that is rejected
+			if (!queueCapacity.tryAcquire(numToQueue)) {
+				synchronized (latencies) {
+					numRejected++;
+				}
+				respond(exchange, 503, "Server overloaded, try again later\n");
+				return;
+			}
+			for (Item<R> item : items) {
+				if (item != null)
+					queue.add(item);
+			}
+
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < smiles.size(); i++) {
+				sb.append(smiles.get(i)).append('\t');
+				if (items.get(i) == null) {
+					sb.append("error: ").append(errors.get(i));
+				} else {
+					try {
+						sb.append(items.get(i).result.get());
+					} catch (ExecutionException e) {
+						String msg = e.getCause().getMessage();
+						sb.append("error: ").append(msg != null ? msg : e.getCause().getClass().getSimpleName());
+					}
+				}
+				sb.append('\n');
+			}
+			respond(exchange, 200, sb.toString());
+
+			synchronized (latencies) {
+				latencies.update((System.nanoTime() - start) / 1e6);
+				numRequests++;
+				numMolecules += smiles.size();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			respond(exchange, 503, "Server stopped\n");
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void handleStats(HttpExchange exchange) throws IOException {
+		try {
+			respond(exchange, 200, getStats() + "\n");
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Statistics of the handled requests, including latency percentiles in milliseconds
+	 */
+	public String getStats() {
+		synchronized (latencies) {
+			double[] p = latencies.getQuantiles(0.5, 0.9, 0.99);
+			return String.format(Locale.ENGLISH,
+					"requests=%d, rejected=%d, molecules=%d, batches=%d, mean batch size=%.1f, latency ms: p50=%.2f, p90=%.2f, p99=%.2f, max=%.2f",
+					numRequests, numRejected, numMolecules, numBatches, numBatches > 0 ? ((double) numPredicted) / numBatches : 0,
+					p[0], p[1], p[2], latencies.getMax());
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream os = exchange.getResponseBody()) {
+			os.write(bytes);
+		}
+	}
+
+	/**
+	 * Stop the server, waiting at most a second for ongoing requests to finish
+	 */
+	@Override
+	public synchronized void close() {
+		if (server != null)
+			server.stop(1);
+		running = false;
+		if (workerPool != null)
+			workerPool.shutdownNow();
+		if (requestPool != null)
+			requestPool.shutdownNow();
+		if (queue != null) {
+			Item<R> item;
+			while ((item = queue.poll()) != null)
+				item.result.completeExceptionally(new IllegalStateException("Server stopped"));
+		}
+	}
+
+}
@@ -0,0 +1,263 @@
+package utils;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ * A streaming quantile sketch (KLL, Karnin, Lang and Liberty 2016) that approximates the quantiles of a
+ * stream of values using memory that is independent of the number of values. Sketches of different
+ * partitions of the data can be merged, so the sketch can be computed in parallel.
+ *
+ * The accuracy is given by the parameter k: the normalized rank error is roughly 1.3% for k=200 (the
+ * default) and decreases close to linearly with k, see getNormalizedRankError. The memory is about
+ * 3k values. The sketch uses a fixed seed, so the result is reproducible for the same data and order
+ * of updates and merges.
+ */
+public class QuantileSketch {
+
+	public static final int DEFAULT_K = 200;
+	private static final int MIN_LEVEL_CAPACITY = 8;
+
+	private final int k;
+	private final Random rng;
+	// levels[h] contains levelSizes[h] items with weight 2^h, for h < numLevels
+	private double[][] levels = new double[0][];
+	private int[] levelSizes = new int[0];
+	private int numLevels = 0;
+	private int numRetained = 0;
+	// The capacity of a level at a given depth below the top level, and the sum of the capacities of all levels
+	private int[] depthCapacities = new int[0];
+	private int totalCapacity = 0;
+	private long count = 0;
+	private double min = Double.NaN, max = Double.NaN;
+
+	public QuantileSketch() {
+		this(DEFAULT_K);
+	}
+
+	public QuantileSketch(int k) {
+		if (k < MIN_LEVEL_CAPACITY)
+			throw new IllegalArgumentException("k must be at least " + MIN_LEVEL_CAPACITY + ", got: " + k);
+		this.k = k;
+		this.rng = new Random(k);
+		addLevel();
+	}
+
+	/**
+	 * Create a sketch with (approximately) the given normalized rank error
+	 * @param rankError the rank error, e.g. 0.01 for 1%
+	 * @return a new sketch
+	 */
+	public static QuantileSketch withRankError(double rankError) {
+		if (rankError <= 0 || rankError >= 1)
+			throw new IllegalArgumentException("Rank error must be in (0,1), got: " + rankError);
+		return new QuantileSketch(kForRankError(rankError));
+	}
+
+	static int kForRankError(double rankError) {
+		// Inverse of the empirical error formula of getNormalizedRankError
+		return Math.max(MIN_LEVEL_CAPACITY, (int) Math.ceil(Math.pow(2.296 / rankError, 1 / 0.9723)));
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	/**
+	 * The approximate normalized rank error of a single quantile (with 99% confidence), using the
+	 * empirically derived formula of the Apache DataSketches KLL implementation
+	 */
+	public double getNormalizedRankError() {
+		return 2.296 / Math.pow(k, 0.9723);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	/**
+	 * The number of values retained by the sketch
+	 */
+	public int getNumRetained() {
+		return numRetained;
+	}
+
+	public void update(double value) {
+		if (Double.isNaN(value))
+			return;
+		if (count == 0) {
+			min = value;
+			max = value;
+		} else {
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+		count++;
+		append(0, value);
+		compress();
+	}
+
+	/**
+	 * Merge another sketch into this one, the other sketch is not modified
+	 */
+	public QuantileSketch merge(QuantileSketch other) {
+		if (other.isEmpty())
+			return this;
+		for (int h = 0; h < other.numLevels; h++) {
+			double[] items = other.levels[h];
+			for (int i = 0; i < other.levelSizes[h]; i++)
+				append(h, items[i]);
+		}
+		min = count == 0 ? other.min : Math.min(min, other.min);
+		max = count == 0 ? other.max : Math.max(max, other.max);
+		count += other.count;
+		compress();
+		return this;
+	}
+
+	public double getQuantile(double q) {
+		return getQuantiles(q)[0];
+	}
+
+	public double[] getQuantiles(double... qs) {
+		return getQuantiles(qs, Double.NaN, 0);
+	}
+
+	/**
+	 * Get quantiles as if an extra value was added the given number of times, without adding it to the
+	 * sketch. Useful for e.g. implicit zeros of sparse data, that are not added one by one
+	 */
+	double[] getQuantiles(double[] qs, double extraValue, long extraCount) {
+		long total = count + extraCount;
+		double[] result = new double[qs.length];
+		if (total == 0) {
+			Arrays.fill(result, Double.NaN);
+			return result;
+		}
+		// Sorted (value, weight) pairs of all retained items
+		int n = getNumRetained() + (extraCount > 0 ? 1 : 0);
+		double[] values = new double[n];
+		long[] weights = new long[n];
+		Integer[] order = new Integer[n];
+		int pos = 0;
+		for (int h = 0; h < numLevels; h++) {
+			double[] items = levels[h];
+			for (int i = 0; i < levelSizes[h]; i++) {
+				values[pos] = items[i];
+				weights[pos] = 1L << h;
+				pos++;
+			}
+		}
+		if (extraCount > 0) {
+			values[pos] = extraValue;
+			weights[pos] = extraCount;
+		}
+		for (int i = 0; i < n; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+
+		// Compaction preserves the total weight, so the weights sum to the total count
+		for (int j = 0; j < qs.length; j++) {
+			if (qs[j] < 0 || qs[j] > 1)
+				throw new IllegalArgumentException("Quantile must be in [0,1], got: " + qs[j]);
+			double targetRank = qs[j] * total;
+			long cumulative = 0;
+			result[j] = values[order[n - 1]];
+			for (int i = 0; i < n; i++) {
+				cumulative += weights[order[i]];
+				if (cumulative >= targetRank) {
+					result[j] = values[order[i]];
+					break;
+				}
+			}
+		}
+		return result;
+	}
+
+	private void addLevel() {
+		if (numLevels == levels.length) {
+			levels = Arrays.copyOf(levels, numLevels + 1);
+			levelSizes = Arrays.copyOf(levelSizes, numLevels + 1);
+		}
+		levels[numLevels] = new double[MIN_LEVEL_CAPACITY];
+		levelSizes[numLevels] = 0;
+		numLevels++;
+		// The new level is at the top, so the depth of all other levels increases by one
+		if (depthCapacities.length < numLevels) {
+			depthCapacities = Arrays.copyOf(depthCapacities, numLevels);
+			int depth = numLevels - 1;
+			depthCapacities[depth] = Math.max(MIN_LEVEL_CAPACITY, (int) Math.ceil(k * Math.pow(2.0 / 3, depth)));
+		}
+		totalCapacity += depthCapacities[numLevels - 1];
+	}
+
+	private void append(int level, double value) {
+		while (numLevels <= level)
+			addLevel();
+		double[] items = levels[level];
+		int size = levelSizes[level];
+		if (size == items.length) {
+			items = Arrays.copyOf(items, size * 2);
+			levels[level] = items;
+		}
+		items[size] = value;
+		levelSizes[level] = size + 1;
+		numRetained++;
+	}
+
+	/**
+	 * The capacity of a level, that decreases geometrically with the depth below the top level
+	 */
+	private int capacity(int level) {
+		return depthCapacities[numLevels - 1 - level];
+	}
+
+	/**
+	 * Compact the lowest level that is at (or over) its capacity, until the sketch is within its total capacity
+	 */
+	private void compress() {
+		while (numRetained >= totalCapacity) {
+			for (int h = 0; h < numLevels; h++) {
+				if (levelSizes[h] >= capacity(h)) {
+					compact(h);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sort the level and promote every other item (starting at a random offset) to the level above,
+	 * each with twice the weight. If the level has an odd number of items one of them is kept
+	 */
+	private void compact(int level) {
+		int size = levelSizes[level];
+		double[] items = levels[level];
+		Arrays.sort(items, 0, size);
+		int kept = size % 2;
+		int offset = rng.nextBoolean() ? 1 : 0;
+		for (int i = kept + offset; i < size; i += 2)
+			append(level + 1, items[i]);
+		// The smallest item is the one kept, at index 0
+		levelSizes[level] = kept;
+		numRetained -= size - kept;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("QuantileSketch[k=%d, count=%d, retained=%d]", k, count, getNumRetained());
+	}
+
+}
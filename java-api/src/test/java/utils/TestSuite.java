@@ -5,6 +5,7 @@ import org.junit.runners.Suite;
 import org.junit.runners.Suite.SuiteClasses;
 
 import examples.ApplyDataTransformations;
+import examples.BatchPrediction;
 import examples.GeneratePredictionImages;
 import examples.ManipulatingNumericalDatasets;
 import examples.ParameterTuning;
@@ -15,6 +16,7 @@ import examples.StandardWorkflowsNonChem;
 @RunWith(Suite.class)
 @SuiteClasses({
 	ApplyDataTransformations.class,
+	BatchPrediction.class,
 	GeneratePredictionImages.class,
 	ManipulatingNumericalDatasets.class,
 	ParameterTuning.class,